@@ -0,0 +1,357 @@
+package org.voile;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import org.voile.MemoryPool.Block;
+
+/**
+ * a VoileFile keyed by long, without boxing.
+ * the key is kept raw in the index entry, so opening the file
+ * needs no deserialization of keys, records keep a raw copy
+ * of it only for recovery.
+ * in memory keys live in a open addressing table of primitives
+ *
+ * @author fox
+ */
+public class LongVoileFile<V extends Serializable> extends VoileStore<V> {
+
+    static final int INDEX_ENTRY_SIZE = 2 * INT_SIZE + 2 * LONG_SIZE;
+
+    private final LongIndex index;
+
+    public LongVoileFile(File f) throws IOException {
+        this(f, false);
+    }
+
+    /**
+     * @param f the file
+     * @param slabs serve small records from the slabs of the data pool,
+     *              less fragmentation when most records are small
+     * @throws java.io.IOException when unlucky
+     */
+    public LongVoileFile(File f, boolean slabs) throws IOException {
+        this(f, slabs, false);
+    }
+
+    private LongVoileFile(File f, boolean slabs, boolean recover) throws IOException {
+        super(f, slabs, INDEX_ENTRY_SIZE);
+        index = new LongIndex();
+        if (recover) recover(Runtime.getRuntime().availableProcessors());
+        else open();
+    }
+
+    /**
+     * opens a file whose index is damaged, rebuilding it from the records,
+     * see {@link VoileFile#recover}
+     *
+     * @param f the file
+     * @param slabs serve small records from the slabs of the data pool
+     * @return the file, with a new index
+     * @throws java.io.IOException when unlucky
+     */
+    public static <V extends Serializable> LongVoileFile<V> recover(File f, boolean slabs) throws IOException {
+        return new LongVoileFile<V>(f, slabs, true);
+    }
+
+    @Override
+    public int numEntries() {
+        return index.size;
+    }
+
+    /**
+     * @return a copy of all keys, in no particular order,
+     * expired ones are here until they're reclaimed
+     */
+    public long[] keys() {
+        return index.keys();
+    }
+
+    public boolean containsKey(long key) {
+        return live(index.get(key)) != null;
+    }
+
+    public V put(long key, V value) throws IOException {
+        return put(key, value, 0);
+    }
+
+    /**
+     * like put, but the entry expires after ttl,
+     * see {@link VoileFile#put(java.io.Serializable, java.io.Serializable, long)}
+     *
+     * @param key the key
+     * @param value the value
+     * @param ttl time to live in ms, 0 for never
+     * @return the old value
+     * @throws java.io.IOException when unlucky
+     */
+    public V put(long key, V value, long ttl) throws IOException {
+        final long now = expireDue();
+        return putValue(entry(key), key2bin(key), value, now, ttl);
+    }
+
+    /**
+     * stores the bytes of a stream as the value of key,
+     * see {@link VoileFile#putStream}
+     *
+     * @param key the key
+     * @param in where the value comes from, read until the end
+     * @throws java.io.IOException when unlucky
+     */
+    public void putStream(long key, InputStream in) throws IOException {
+        putChannel(key, Channels.newChannel(in));
+    }
+
+    /**
+     * same as putStream, reading from a channel
+     *
+     * @param key the key
+     * @param in where the value comes from, read until the end
+     * @throws java.io.IOException when unlucky
+     */
+    public void putChannel(long key, ReadableByteChannel in) throws IOException {
+        expireDue();
+        putRawValue(entry(key), key2bin(key), in);
+    }
+
+    public V get(long key) throws IOException {
+        return getValue(index.get(key));
+    }
+
+    /**
+     * reads the value bytes of key, see {@link VoileFile#getStream}
+     *
+     * @param key the key
+     * @return the value bytes as they are stored, or null if there's no such key
+     */
+    public InputStream getStream(long key) {
+        return streamValue(index.get(key));
+    }
+
+    /**
+     * sends the value bytes of key straight from the file to target
+     *
+     * @param key the key
+     * @param target where to write the value
+     * @return the number of bytes transferred, -1 if there's no such key
+     * @throws java.io.IOException when unlucky
+     */
+    public long transferTo(long key, WritableByteChannel target) throws IOException {
+        return transferValue(index.get(key), target);
+    }
+
+    public V remove(long key) throws IOException {
+        final long now = expireDue();
+        return removeValue(index.get(key), now);
+    }
+
+    /**
+     * removes key without reading the old value
+     *
+     * @param key the key
+     * @return whether there was such key
+     * @throws java.io.IOException when unlucky
+     */
+    public boolean delete(long key) throws IOException {
+        final long now = expireDue();
+        return deleteValue(index.get(key), now);
+    }
+
+    /**
+     * @return the entry of key, or a new one if there's none
+     */
+    private LongEntry entry(long key) {
+        LongEntry e = index.get(key);
+        if (e == null) e = new LongEntry(key);
+        return e;
+    }
+
+    /**
+     * index entry: (dataPointer, dataLength | flags, key, expires),
+     * the record holds the key bytes of key2bin
+     */
+    @Override
+    Entry readEntry(Block header, ByteBuffer entry_data) throws IOException {
+        int start = entry_data.getInt();
+        int length = entry_data.getInt();
+        LongEntry e = new LongEntry(entry_data.getLong());
+        e.expires = entry_data.getLong();
+        e.header = header;
+        e.data = new Block(start, length & ~ENTRY_FLAGS);
+        e.raw = (length & RAW_FLAG) != 0;
+
+        if ((length & BLOB_FLAG) != 0) readExtents(e);
+
+        index.put(e);
+        schedule(e);
+        return e;
+    }
+
+    @Override
+    void indexAdd(Entry e) {
+        index.put((LongEntry) e);
+    }
+
+    @Override
+    void indexRemove(Entry e) {
+        index.remove(((LongEntry) e).key);
+    }
+
+    @Override
+    void encodeEntry(Entry e, ByteBuffer b) {
+        b.putInt(e.data.start);
+        b.putInt(e.data.length | e.flags());
+        b.putLong(((LongEntry) e).key);
+        b.putLong(e.expires);
+    }
+
+    @Override
+    Iterable<LongEntry> entries() {
+        return index;
+    }
+
+    @Override
+    Object decodeKey(ByteBuffer key_data) throws IOException {
+        if (key_data.remaining() != LONG_SIZE) throw new IOException("not a long key");
+        return key_data.getLong(key_data.position());
+    }
+
+    @Override
+    Entry indexEntry(Object key, Block data, int keySize, long expires) {
+        LongEntry e = new LongEntry((Long) key);
+        e.data = data;
+        e.expires = expires;
+        index.put(e);
+        schedule(e);
+        return e;
+    }
+
+    private static ByteBuffer key2bin(long key) {
+        ByteBuffer b = ByteBuffer.allocate(LONG_SIZE);
+        b.putLong(key);
+        b.flip();
+        return b;
+    }
+
+    static class LongEntry extends Entry {
+        final long key;
+
+        LongEntry(long key) {
+            super(null, null, LONG_SIZE);
+            this.key = key;
+        }
+    }
+
+    /**
+     * open addressing hash table from long to entry,
+     * linear probing, removal shifts the following entries back
+     */
+    static class LongIndex implements Iterable<LongEntry> {
+        private long[] keys = new long[16];
+        private LongEntry[] values = new LongEntry[16];
+        int size;
+
+        LongEntry get(long key) {
+            int mask = keys.length - 1;
+            for (int i = slot(key, mask); values[i] != null; i = (i + 1) & mask) {
+                if (keys[i] == key) return values[i];
+            }
+            return null;
+        }
+
+        void put(LongEntry e) {
+            if (2 * (size + 1) > keys.length) resize(2 * keys.length);
+
+            int mask = keys.length - 1;
+            int i = slot(e.key, mask);
+            while (values[i] != null && keys[i] != e.key) i = (i + 1) & mask;
+
+            if (values[i] == null) size++;
+            keys[i] = e.key;
+            values[i] = e;
+        }
+
+        void remove(long key) {
+            int mask = keys.length - 1;
+            int i = slot(key, mask);
+            while (values[i] != null && keys[i] != key) i = (i + 1) & mask;
+            if (values[i] == null) return;
+
+            size--;
+            // shift back the entries that probed past the hole
+            for (int j = (i + 1) & mask; values[j] != null; j = (j + 1) & mask) {
+                int home = slot(keys[j], mask);
+                if (((j - home) & mask) >= ((j - i) & mask)) {
+                    keys[i] = keys[j];
+                    values[i] = values[j];
+                    i = j;
+                }
+            }
+            values[i] = null;
+        }
+
+        long[] keys() {
+            long[] r = new long[size];
+            int n = 0;
+            for (int i = 0; i < values.length; i++) {
+                if (values[i] != null) r[n++] = keys[i];
+            }
+            return r;
+        }
+
+        private void resize(int capacity) {
+            LongEntry[] old = values;
+            keys = new long[capacity];
+            values = new LongEntry[capacity];
+            size = 0;
+            for (LongEntry e : old) {
+                if (e != null) put(e);
+            }
+        }
+
+        private static int slot(long key, int mask) {
+            key ^= key >>> 33;
+            key *= 0xff51afd7ed558ccdL;
+            key ^= key >>> 33;
+            return (int) key & mask;
+        }
+
+        @Override
+        public Iterator<LongEntry> iterator() {
+            return new Iterator<LongEntry>() {
+                int i = next(0);
+
+                int next(int from) {
+                    while (from < values.length && values[from] == null) from++;
+                    return from;
+                }
+
+                @Override
+                public boolean hasNext() {
+                    return i < values.length;
+                }
+
+                @Override
+                public LongEntry next() {
+                    if (!hasNext()) throw new NoSuchElementException();
+                    LongEntry e = values[i];
+                    i = next(i + 1);
+                    return e;
+                }
+
+                @Override
+                public void remove() {
+                    throw new UnsupportedOperationException();
+                }
+            };
+        }
+    }
+}
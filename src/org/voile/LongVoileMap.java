@@ -0,0 +1,186 @@
+package org.voile;
+
+import java.io.*;
+import java.nio.channels.WritableByteChannel;
+
+
+/**
+ * a map keyed by long, backed by a {@link LongVoileFile}.
+ * works like VoileMap without boxing the keys, so it
+ * can't be a java.util.Map
+ *
+ * @author fox
+ */
+public class LongVoileMap <V extends Serializable> {
+
+    private LongVoileFile<V> vf;
+    private final File file;
+
+    private final boolean slabs;
+
+    public LongVoileMap(File file) {
+        this(file, false);
+    }
+
+    /**
+     * @param file the file
+     * @param slabs serve small records from slabs, see {@link MemoryPool}
+     */
+    public LongVoileMap(File file, boolean slabs) {
+        this(file, slabs, false);
+    }
+
+    private LongVoileMap(File file, boolean slabs, boolean recover) {
+        this.file = file;
+        this.slabs = slabs;
+        try {
+            vf = recover ? LongVoileFile.<V>recover(file, slabs) : new LongVoileFile<V>(file, slabs);
+        } catch (IOException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    /**
+     * opens a map whose file has a damaged index,
+     * rebuilding it from the records, see {@link LongVoileFile#recover}
+     *
+     * @param file the file
+     * @param slabs serve small records from slabs, see {@link MemoryPool}
+     * @return the map
+     */
+    public static <V extends Serializable> LongVoileMap<V> recover(File file, boolean slabs) {
+        return new LongVoileMap<V>(file, slabs, true);
+    }
+
+    /**
+     * expired entries count until they're reclaimed,
+     * call expire first for an exact size
+     */
+    public int size() {
+        return vf.numEntries();
+    }
+
+    public boolean isEmpty() {
+        return vf.numEntries() == 0;
+    }
+
+    public boolean containsKey(long k) {
+        return vf.containsKey(k);
+    }
+
+    public V get(long k) {
+        try {
+            return vf.get(k);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public V put(long k, V v) {
+        try {
+            return vf.put(k, v);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * puts k, expiring after ttl ms
+     * @return the old value
+     */
+    public V put(long k, V v, long ttl) {
+        try {
+            return vf.put(k, v, ttl);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public V remove(long k) {
+        try {
+            return vf.remove(k);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * removes k without reading the old value
+     * @return whether there was such key
+     */
+    public boolean delete(long k) {
+        try {
+            return vf.delete(k);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * reclaims the expired entries now instead of on a later write
+     * @return how many entries were reclaimed
+     */
+    public int expire() {
+        try {
+            return vf.expire();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * stores the bytes of a stream as the value of k,
+     * big values are written in chunks and never fully held in memory.
+     * put and remove return null over such values
+     */
+    public void putStream(long k, InputStream in) {
+        try {
+            vf.putStream(k, in);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * the stream fails once a write changed or moved the value
+     * @return the value bytes of k as stored, or null if there's no such key
+     */
+    public InputStream getStream(long k) {
+        return vf.getStream(k);
+    }
+
+    /**
+     * sends the value bytes of k straight from the file to target
+     * @return the number of bytes transferred, -1 if there's no such key
+     */
+    public long transferTo(long k, WritableByteChannel target) {
+        try {
+            return vf.transferTo(k, target);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * expired keys are here until they're reclaimed, see expire
+     * @return a copy of all keys, in no particular order
+     */
+    public long[] keys() {
+        return vf.keys();
+    }
+
+    public void clear() {
+        try {
+            vf.close();
+            file.delete();
+            file.createNewFile();
+            vf = new LongVoileFile<V>(file, slabs);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public void close() throws IOException {
+        vf.close();
+    }
+}
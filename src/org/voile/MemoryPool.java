@@ -1,30 +1,74 @@
 package org.voile;
 
 
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.TreeSet;
 /**
  * manages a pool of space, provides methods
  * to allocate and free blocks of the pool
+ *
+ * in slab mode small blocks are served from slots of fixed
+ * size classes, carved out of aligned extents of the pool
+ * and tracked with bitmaps, instead of splitting the free space
  * @author fox
  */
 public class MemoryPool {
 
+    // blocks up to this size go to the slabs
+    static final int SLAB_MAX = 512;
+    // size of a slab extent, extents are aligned to it
+    static final int SLAB_EXTENT = 16 * 1024;
+
+    private static final int[] SIZE_CLASSES = {
+        16, 24, 32, 40, 48, 56, 64, 80, 96, 112, 128,
+        160, 192, 224, 256, 320, 384, 448, SLAB_MAX
+    };
+
     private final TreeSet<Block> freeSpace;
 
     private int limit;
     private final boolean canGrow;
 
+    // slab extents by start, and the ones with free slots by class
+    private final HashMap<Integer, Slab> slabs;
+    private final LinkedHashSet<Slab>[] partialSlabs;
+
     /** creates a new pool of space
      * @param offset where to start the count
      * @param length the size of the pool
      * @param canGrow grow as needed when allocate
      */
     public MemoryPool(int offset, int length, boolean canGrow) {
+        this(offset, length, canGrow, false);
+    }
+
+    /** creates a new pool of space
+     * @param offset where to start the count
+     * @param length the size of the pool
+     * @param canGrow grow as needed when allocate
+     * @param slabMode serve small blocks from slabs
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public MemoryPool(int offset, int length, boolean canGrow, boolean slabMode) {
         this.limit = length;
         this.canGrow = canGrow;
 
         freeSpace = new TreeSet<Block>();
-        free(new Block(offset, limit-offset));
+        if (slabMode) {
+            slabs = new HashMap<Integer, Slab>();
+            partialSlabs = new LinkedHashSet[SIZE_CLASSES.length];
+            for (int i = 0; i < partialSlabs.length; i++) {
+                partialSlabs[i] = new LinkedHashSet<Slab>();
+            }
+        } else {
+            slabs = null;
+            partialSlabs = null;
+        }
+        freeContiguous(new Block(offset, limit-offset));
     }
 
     /**
@@ -35,19 +79,55 @@ public class MemoryPool {
     public Block allocate(int size) {
         if (size <= 0) return null;
 
+        if (slabs != null && size <= SLAB_MAX) return allocateSlot(size);
+
+        return allocateContiguous(size);
+    }
+
+    /**
+     * allocates a block from the free space, never from a slab,
+     * so it can be split in smaller blocks later on
+     * @param size the size of the desired block
+     * @return a pointer for the block
+     */
+    public Block allocateContiguous(int size) {
+        if (size <= 0) return null;
+
         Block b = findFreeBlock(size);
 
         if (b == null) {
             if (!canGrow) return null;
 
             // create more space
-            free(new Block(limit, size));
+            freeContiguous(new Block(limit, size));
             b = findFreeBlock(size);
         }
 
         return checkout(b, size);
     }
 
+    /**
+     * changes the size of an allocated block without moving it,
+     * shrinking gives the extra space back, slab slots can change
+     * size as long as they stay in the same size class
+     * @param b the allocated block
+     * @param size the new size
+     * @return the resized block or null if it has to move
+     */
+    public Block reallocate(Block b, int size) {
+        if (size <= 0) return null;
+
+        Slab slab = slabOf(b);
+        if (slab != null) {
+            return classOf(size) == slab.sizeClass ? new Block(b.start, size) : null;
+        }
+        if (size > b.length) return null;
+
+        Block[] ab = Block.splitBlock(b, size);
+        freeContiguous(ab[1]);
+        return ab[0];
+    }
+
     /** 
      * checks if this pool have a block with enough space
      * @param size the desired block size
@@ -105,6 +185,182 @@ public class MemoryPool {
         return null;
     }
 
+    /**
+     * allocate exactly the range [start, end), growing the pool
+     * up to end if needed. the whole range must be free
+     * @param start where the range starts
+     * @param end where the range ends, exclusive
+     * @return the block or null if the range isn't free
+     */
+    public Block allocateRange(int start, int end) {
+        if (end <= start) return null;
+
+        if (end > limit) {
+            if (!canGrow) return null;
+            freeContiguous(new Block(limit, end - limit));
+        }
+
+        Block b = freeSpace.floor(new Block(start, 0));
+        if (b == null || b.start + b.length < end) return null;
+
+        return checkoutRange(b, start, end);
+    }
+
+    /**
+     * @param end the end of a range
+     * @return end, moved forward to the end of the slab extent it cuts, if any
+     */
+    public int coverSlabs(int end) {
+        if (slabs == null) return end;
+
+        Slab slab = slabs.get(alignDown(end - 1));
+        return slab != null ? slab.start + SLAB_EXTENT : end;
+    }
+
+    /**
+     * frees everything in [start, end) that is not used,
+     * the way to build the pool back from what is in use.
+     * in slab mode extents where all blocks fit the slots
+     * of one size class become slabs again
+     * @param start where the space starts
+     * @param end where the space ends
+     * @param used the blocks in use, sorted by start
+     */
+    public void rebuild(int start, int end, List<Block> used) {
+        int pos = start;
+        for (int i = 0; i < used.size(); ) {
+            Block b = used.get(i);
+            int a = alignDown(b.start);
+
+            if (slabs != null && a >= pos && a + SLAB_EXTENT <= end) {
+                int j = i;
+                while (j < used.size() && used.get(j).start < a + SLAB_EXTENT) j++;
+
+                if (rebuildSlab(a, used.subList(i, j))) {
+                    freeContiguous(new Block(pos, a - pos));
+                    pos = a + SLAB_EXTENT;
+                    i = j;
+                    continue;
+                }
+            }
+            freeContiguous(new Block(pos, b.start - pos));
+            pos = b.start + b.length;
+            i++;
+        }
+        freeContiguous(new Block(pos, end - pos));
+    }
+
+    /**
+     * turns the extent at a into a slab if the blocks fit its slots
+     * @return whether it did
+     */
+    private boolean rebuildSlab(int a, List<Block> blocks) {
+        int sizeClass = classOf(blocks.get(0).length);
+        if (sizeClass < 0) return false;
+
+        Slab slab = new Slab(a, sizeClass);
+        for (Block b : blocks) {
+            if (classOf(b.length) != sizeClass) return false;
+            if ((b.start - a) % slab.slotSize != 0) return false;
+            if ((b.start - a) / slab.slotSize >= slab.slots) return false;
+        }
+        for (Block b : blocks) slab.take((b.start - a) / slab.slotSize);
+
+        slabs.put(a, slab);
+        if (slab.count < slab.slots) partialSlabs[sizeClass].add(slab);
+        return true;
+    }
+
+    private Block allocateSlot(int size) {
+        int sizeClass = classOf(size);
+        LinkedHashSet<Slab> partial = partialSlabs[sizeClass];
+
+        Slab slab;
+        if (partial.isEmpty()) {
+            Block extent = allocateAligned();
+            if (extent == null) return null;
+            slab = new Slab(extent.start, sizeClass);
+            slabs.put(slab.start, slab);
+            partial.add(slab);
+        } else {
+            slab = partial.iterator().next();
+        }
+
+        int slot = slab.claim();
+        if (slab.count == slab.slots) partial.remove(slab);
+        return new Block(slab.start + slot * slab.slotSize, size);
+    }
+
+    private void freeSlot(Slab slab, Block b) {
+        int offset = b.start - slab.start;
+        if (offset % slab.slotSize != 0 || b.length > slab.slotSize) {
+            throw new RuntimeException("Corrupted. DEBUG SLAB " + b + " in " + slab.start + "/" + slab.slotSize);
+        }
+        LinkedHashSet<Slab> partial = partialSlabs[slab.sizeClass];
+
+        slab.release(offset / slab.slotSize);
+        if (slab.count == 0) { // hand the extent back
+            partial.remove(slab);
+            slabs.remove(slab.start);
+            freeContiguous(new Block(slab.start, SLAB_EXTENT));
+        } else {
+            partial.add(slab);
+        }
+    }
+
+    /**
+     * @return a free block of SLAB_EXTENT bytes, aligned to SLAB_EXTENT
+     */
+    private Block allocateAligned() {
+        for (Block b : freeSpace) {
+            int a = alignDown(b.start + SLAB_EXTENT - 1);
+            if (a + SLAB_EXTENT <= b.start + b.length)
+                return checkoutRange(b, a, a + SLAB_EXTENT);
+        }
+        if (!canGrow) return null;
+
+        int a = alignDown(limit + SLAB_EXTENT - 1);
+        return allocateRange(a, a + SLAB_EXTENT);
+    }
+
+    /**
+     * @return the slab the block was allocated from, or null
+     */
+    private Slab slabOf(Block b) {
+        if (slabs == null) return null;
+        return slabs.get(alignDown(b.start));
+    }
+
+    private static int alignDown(int p) {
+        return p - p % SLAB_EXTENT;
+    }
+
+    /**
+     * @return the index of the smallest size class that fits size, or -1
+     */
+    private static int classOf(int size) {
+        for (int i = 0; i < SIZE_CLASSES.length; i++) {
+            if (size <= SIZE_CLASSES[i]) return i;
+        }
+        return -1;
+    }
+
+    /**
+     * removes the free block b from this pool,
+     * keeping only the range [start, end) of it
+     */
+    private Block checkoutRange(Block b, int start, int end) {
+
+        freeSpace.remove(b);
+
+        // give back what's left on each side
+        Block[] ab = Block.splitBlock(b, start - b.start);
+        if (ab[0].length > 0) freeSpace.add(ab[0]);
+        ab = Block.splitBlock(ab[1], end - start);
+        if (ab[1].length > 0) freeSpace.add(ab[1]);
+        return ab[0];
+    }
+
     /**
      * @return the limit of the pool, the max address
      */
@@ -119,6 +375,43 @@ public class MemoryPool {
     public void free(Block b) {
         if(b.length <= 0) return;
 
+        Slab slab = slabOf(b);
+        if (slab != null) {
+            freeSlot(slab, b);
+            return;
+        }
+        freeContiguous(b);
+    }
+
+    /**
+     * frees many blocks at once. they are sorted first, so
+     * neighbours are merged together before they reach the
+     * free space and each run costs a single insertion
+     * @param blocks the blocks to free, the list gets sorted
+     */
+    public void freeAll(List<Block> blocks) {
+        Collections.sort(blocks);
+
+        Block run = null;
+        for (Block b : blocks) {
+            if (b.length <= 0) continue;
+
+            Slab slab = slabOf(b);
+            if (slab != null) {
+                freeSlot(slab, b);
+            } else if (run != null && run.start + run.length == b.start) {
+                run = new Block(run.start, run.length + b.length);
+            } else {
+                if (run != null) freeContiguous(run);
+                run = b;
+            }
+        }
+        if (run != null) freeContiguous(run);
+    }
+
+    private void freeContiguous(Block b) {
+        if(b.length <= 0) return;
+
         if (b.start + b.length > limit) limit = b.start + b.length; // grows with free
 
         // query adjacent blocks
@@ -149,9 +442,66 @@ public class MemoryPool {
         for (Block b : freeSpace) {
             sb.append(b).append("\n");
         }
+        if (slabs != null) {
+            for (Slab slab : slabs.values()) {
+                sb.append("SLAB[").append(slab.start).append(":").append(slab.slotSize)
+                        .append(" ").append(slab.count).append("/").append(slab.slots).append("]\n");
+            }
+        }
         return sb.toString();
     }
 
+    /**
+     * an extent cut in slots of one size class,
+     * a bit set for every slot in use
+     */
+    private static class Slab {
+        final int start;
+        final int sizeClass;
+        final int slotSize;
+        final int slots;
+        final long[] used;
+        int count;
+        int hint; // first word that may have a free slot
+
+        Slab(int start, int sizeClass) {
+            this.start = start;
+            this.sizeClass = sizeClass;
+            slotSize = SIZE_CLASSES[sizeClass];
+            slots = SLAB_EXTENT / slotSize;
+            used = new long[(slots + 63) / 64];
+        }
+
+        int claim() {
+            for (int i = hint; i < used.length; i++) {
+                long free = ~used[i];
+                if (free == 0) continue;
+
+                int slot = i * 64 + Long.numberOfTrailingZeros(free);
+                if (slot >= slots) break;
+                take(slot);
+                hint = i;
+                return slot;
+            }
+            throw new RuntimeException("Corrupted. DEBUG SLAB full " + start);
+        }
+
+        void take(int slot) {
+            used[slot >> 6] |= 1L << slot;
+            count++;
+        }
+
+        void release(int slot) {
+            long bit = 1L << slot;
+            if ((used[slot >> 6] & bit) == 0) {
+                throw new RuntimeException("Corrupted. DEBUG SLAB double free " + start + "+" + slot);
+            }
+            used[slot >> 6] &= ~bit;
+            count--;
+            hint = Math.min(hint, slot >> 6);
+        }
+    }
+
     public static class Block implements Comparable<Block> {
 
         final int start;
@@ -0,0 +1,263 @@
+package org.voile;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32C;
+
+import org.voile.MemoryPool.Block;
+
+import static org.voile.VoileStore.BLOB_FLAG;
+import static org.voile.VoileStore.CHUNK_FLAG;
+import static org.voile.VoileStore.INT_SIZE;
+import static org.voile.VoileStore.LONG_SIZE;
+import static org.voile.VoileStore.RAW_FLAG;
+import static org.voile.VoileStore.RECORD_FLAGS;
+import static org.voile.VoileStore.RECORD_HEADER_SIZE;
+import static org.voile.VoileStore.RECORD_MAGIC;
+
+/**
+ * finds the records of a file by their headers alone.
+ * the range is cut in slices that are scanned in parallel,
+ * each looking for the record magic and checking the checksum
+ * of every candidate, a good record is skipped as a whole.
+ * a slice may start in the middle of a record, the records
+ * found inside another one are dropped when merging. such a record
+ * made its slice skip what starts before its end, so that part is
+ * scanned again from the end of the record it was found in
+ *
+ * @author fox
+ */
+class RecordScanner {
+
+    private static final int WINDOW = 1024 * 1024;
+    private static final int MIN_SLICE = 4 * WINDOW;
+
+    private final VoileStore<?> store;
+    private final FileChannel chan;
+    private final int threads;
+
+    RecordScanner(VoileStore<?> store, int threads) {
+        this.store = store;
+        this.chan = store.chan;
+        this.threads = Math.max(threads, 1);
+    }
+
+    /**
+     * @param start where to start looking
+     * @param end the end of the file
+     * @return the records found, sorted and without overlaps
+     * @throws java.io.IOException when unlucky
+     */
+    List<Record> scan(int start, int end) throws IOException {
+        int slice = Math.max(MIN_SLICE, (end - start) / (4 * threads) + 1);
+
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        ArrayList<Record> found = new ArrayList<Record>();
+        try {
+            ArrayList<Future<List<Record>>> slices = new ArrayList<Future<List<Record>>>();
+            for (int from = start; from < end; from += Math.min(slice, end - from)) {
+                slices.add(pool.submit(new Slice(from, Math.min(from + slice, end), end)));
+            }
+            for (Future<List<Record>> f : slices) {
+                found.addAll(f.get());
+            }
+        } catch (InterruptedException ex) {
+            throw new InterruptedIOException(ex.getMessage());
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof IOException) throw (IOException) ex.getCause();
+            throw new RuntimeException(ex.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+
+        TreeSet<Record> pending = new TreeSet<Record>(found);
+        ArrayList<Record> records = new ArrayList<Record>(found.size());
+        int covered = start;
+        for (Record r; (r = pending.pollFirst()) != null; ) {
+            if (r.block.start >= covered) {
+                records.add(r);
+                covered = r.block.start + r.block.length;
+                continue;
+            }
+            // found inside another record, whatever starts between
+            // the end of that one and the end of this one was skipped
+            int to = r.block.start + r.block.length;
+            if (to > covered) pending.addAll(new Slice(covered, to, end).call());
+        }
+        return records;
+    }
+
+    /**
+     * a record with a good checksum
+     */
+    static class Record implements Comparable<Record> {
+        final Block block;
+        final int keySize;
+        final long seq;
+        final long expires;
+
+        // null for blob chunks
+        Object key;
+        // the chunk list, only for blobs
+        Block[] extents;
+        // stored from a stream
+        boolean raw;
+
+        Record(Block block, int keySize, long seq, long expires) {
+            this.block = block;
+            this.keySize = keySize;
+            this.seq = seq;
+            this.expires = expires;
+        }
+
+        @Override
+        public int compareTo(Record r) {
+            return block.compareTo(r.block);
+        }
+    }
+
+    /**
+     * scans the records starting in [from, to), reading
+     * the file through a window that follows the position
+     */
+    private class Slice implements Callable<List<Record>> {
+        final int from;
+        final int to;
+        final int end;
+
+        final ByteBuffer window = ByteBuffer.allocate(WINDOW);
+        int windowStart;
+
+        Slice(int from, int to, int end) {
+            this.from = from;
+            this.to = to;
+            this.end = end;
+            window.limit(0);
+        }
+
+        @Override
+        public List<Record> call() throws IOException {
+            ArrayList<Record> found = new ArrayList<Record>();
+            int p = from;
+            while (p < to && p + RECORD_HEADER_SIZE <= end) {
+                if (p + RECORD_HEADER_SIZE > windowStart + window.limit()) fill(p);
+
+                if (window.getInt(p - windowStart) == RECORD_MAGIC) {
+                    Record r = check(p);
+                    if (r != null) {
+                        found.add(r);
+                        p += r.block.length;
+                        continue;
+                    }
+                }
+                p++;
+            }
+            return found;
+        }
+
+        /**
+         * @return the record at p, or null if it's not a good one
+         */
+        private Record check(int p) throws IOException {
+            int off = p - windowStart;
+            int length = window.getInt(off + INT_SIZE);
+            int keySize = window.getInt(off + 2 * INT_SIZE);
+            long seq = window.getLong(off + 3 * INT_SIZE);
+            long expires = window.getLong(off + 3 * INT_SIZE + LONG_SIZE);
+            int crc = window.getInt(off + RECORD_HEADER_SIZE - INT_SIZE);
+
+            int flags = keySize & RECORD_FLAGS;
+            keySize &= ~RECORD_FLAGS;
+            if (length < keySize || length > end - p - RECORD_HEADER_SIZE) return null;
+            if ((flags & CHUNK_FLAG) != 0 && (flags != CHUNK_FLAG || keySize != 0)) return null;
+
+            int size = RECORD_HEADER_SIZE + length;
+            if (p + size > windowStart + window.limit() && size <= window.capacity()) {
+                fill(p);
+                off = 0;
+            }
+
+            window.position(off);
+            CRC32C sum = VoileStore.headerChecksum(window);
+            window.position(0);
+            if (p + size <= windowStart + window.limit()) {
+                sum.update(bytes(p + RECORD_HEADER_SIZE, length));
+            } else {
+                // too big for the window, go through the file
+                ByteBuffer b = ByteBuffer.allocate(WINDOW);
+                for (int pos = p + RECORD_HEADER_SIZE; pos < p + size; pos += b.limit()) {
+                    b.clear();
+                    b.limit(Math.min(WINDOW, p + size - pos));
+                    read(b, pos);
+                    b.flip();
+                    sum.update(b);
+                }
+            }
+            if ((int) sum.getValue() != crc) return null;
+
+            Record r = new Record(new Block(p, size), keySize, seq, expires);
+            if (flags == CHUNK_FLAG) return r;
+            r.raw = (flags & RAW_FLAG) != 0;
+
+            try {
+                r.key = store.decodeKey(bytes(p + RECORD_HEADER_SIZE, keySize));
+                if ((flags & BLOB_FLAG) != 0) {
+                    int n = length - keySize;
+                    ByteBuffer list = bytes(p + RECORD_HEADER_SIZE + keySize, n);
+                    if (n < INT_SIZE || n != INT_SIZE + 2L * INT_SIZE * list.getInt(list.position())) return null;
+                    r.extents = VoileStore.bin2extents(list);
+                }
+            } catch (IOException ex) {
+                return null;
+            } catch (RuntimeException ex) {
+                return null;
+            }
+            return r;
+        }
+
+        /**
+         * @return the bytes at [pos, pos + length), from the window if they're in it
+         */
+        private ByteBuffer bytes(int pos, int length) throws IOException {
+            if (pos >= windowStart && pos + length <= windowStart + window.limit()) {
+                ByteBuffer b = window.duplicate();
+                b.position(pos - windowStart);
+                b.limit(pos - windowStart + length);
+                return b;
+            }
+            ByteBuffer b = ByteBuffer.allocate(length);
+            read(b, pos);
+            b.flip();
+            return b;
+        }
+
+        /**
+         * moves the window to p
+         */
+        private void fill(int p) throws IOException {
+            window.clear();
+            window.limit(Math.min(window.capacity(), end - p));
+            read(window, p);
+            windowStart = p;
+        }
+
+        private void read(ByteBuffer b, int pos) throws IOException {
+            int at = pos - b.position();
+            while (b.hasRemaining()) {
+                if (chan.read(b, at + b.position()) < 0) {
+                    throw new IOException("Corrupted: record past the end of the file.");
+                }
+            }
+        }
+    }
+}
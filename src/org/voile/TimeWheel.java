@@ -0,0 +1,105 @@
+package org.voile;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * a hashed time wheel of items that expire.
+ * time is cut in ticks, each item goes to the slot of the
+ * tick it expires in, modulo the number of slots, so finding
+ * what expired only looks at the slots of the ticks that went by
+ * instead of every item. items far in the future wait in their
+ * slot for as many turns of the wheel as needed
+ *
+ * @author fox
+ */
+class TimeWheel<T> {
+
+    private static final int SLOTS = 256;
+    private static final long TICK = 1000; // ms
+
+    // item -> when it expires
+    private final HashMap<T, Long>[] slots;
+    // items added after their tick was swept
+    private final HashMap<T, Long> overdue = new HashMap<T, Long>();
+
+    // every tick up to this one has been swept
+    private long swept;
+
+    private int size;
+
+    /**
+     * @param now the current time, in ms
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    TimeWheel(long now) {
+        slots = new HashMap[SLOTS];
+        for (int i = 0; i < SLOTS; i++) {
+            slots[i] = new HashMap<T, Long>();
+        }
+        swept = now / TICK - 1;
+    }
+
+    /**
+     * @param item the item
+     * @param expires when it expires, in ms
+     */
+    void add(T item, long expires) {
+        if (expires / TICK <= swept) overdue.put(item, expires);
+        else slots[slotOf(expires)].put(item, expires);
+        size++;
+    }
+
+    /**
+     * @param item the item
+     * @param expires when it expires, as it was added
+     */
+    void remove(T item, long expires) {
+        if (slots[slotOf(expires)].remove(item) != null || overdue.remove(item) != null) size--;
+    }
+
+    /**
+     * @param now the current time, in ms
+     * @return whether a tick went by since the last sweep
+     */
+    boolean due(long now) {
+        return size > 0 && (now / TICK - 1 > swept || !overdue.isEmpty());
+    }
+
+    /**
+     * takes out every item that expired by now, only looking
+     * at the slots of the ticks that ended since the last time
+     * and the slot of the current one, which is looked at again
+     * next time since the rest of its items didn't expire yet
+     *
+     * @param now the current time, in ms
+     * @return the expired items
+     */
+    List<T> advance(long now) {
+        ArrayList<T> expired = new ArrayList<T>(overdue.keySet());
+        size -= overdue.size();
+        overdue.clear();
+
+        long current = now / TICK;
+        for (long t = Math.max(swept + 1, current - SLOTS + 1); t <= current && size > 0; t++) {
+            Iterator<Map.Entry<T, Long>> i = slots[(int) (t & (SLOTS - 1))].entrySet().iterator();
+            while (i.hasNext()) {
+                Map.Entry<T, Long> e = i.next();
+                if (e.getValue() <= now) {
+                    expired.add(e.getKey());
+                    i.remove();
+                    size--;
+                }
+            }
+        }
+        swept = Math.max(swept, current - 1);
+        return expired;
+    }
+
+    private static int slotOf(long expires) {
+        return (int) (expires / TICK & (SLOTS - 1));
+    }
+}
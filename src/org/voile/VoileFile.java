@@ -1,18 +1,21 @@
 package org.voile;
 
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.io.InputStream;
 import java.io.RandomAccessFile;
 import java.io.Serializable;
+import java.io.UncheckedIOException;
 import java.nio.ByteBuffer;
-import java.nio.channels.FileChannel;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Comparator;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.AbstractMap;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
 import java.util.Set;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -22,304 +25,343 @@ import org.voile.MemoryPool.Block;
 /**
  * @author fox
  */
-public class VoileFile<K extends Serializable, V extends Serializable> {
+public class VoileFile<K extends Serializable, V extends Serializable> extends VoileStore<V> {
 
-    private static final int INT_SIZE = Integer.SIZE / Byte.SIZE;
-    private static final int INDEX_ENTRY_SIZE = 3 * INT_SIZE;
+    static final int INDEX_ENTRY_SIZE = 3 * INT_SIZE + LONG_SIZE;
 
-    private static final int INDEX_START = 2 * INT_SIZE;
+    // the layout before records had headers, see upgrade
+    private static final int OLD_INDEX_START = 2 * INT_SIZE;
+    private static final int OLD_INDEX_ENTRY_SIZE = 3 * INT_SIZE;
 
-    private static final Comparator<Entry> dataPointerComparator = new Comparator<Entry>() {
-        @Override
-        public int compare(Entry e1, Entry e2) {
-            return e1.data.start - e2.data.start;
-        }
-    };
-
-    private final RandomAccessFile file;
-    private final FileChannel chan;
-
-    private final HashMap<K, Entry> index;
-    private final MemoryPool headerSpace;
-    private final MemoryPool dataSpace;
+    private final HashMap<K, KeyEntry<K>> index;
 
     public VoileFile(File f) throws IOException {
-        boolean newFile = !f.exists();
-        file = new RandomAccessFile(f, "rw");
-        chan = file.getChannel();
-        index = new HashMap<K, Entry>();
-
-        if (newFile) {
-            int dataStartPointer = 5 * INDEX_ENTRY_SIZE;
-            headerSpace = new MemoryPool(INDEX_START, dataStartPointer, false);
-            dataSpace = new MemoryPool(dataStartPointer, 2 * dataStartPointer, true);
-            updateMainHeader();
-        }
-        else {
-            // read existing file
-            final int numEntries = file.readInt();
-            final int dataStartPointer = file.readInt();
+        this(f, false);
+    }
 
-            ArrayList<Entry> entry_list = new ArrayList<Entry>(numEntries);
+    /**
+     * @param f the file
+     * @param slabs serve small records from the slabs of the data pool,
+     *              less fragmentation when most records are small
+     * @throws java.io.IOException when unlucky
+     */
+    public VoileFile(File f, boolean slabs) throws IOException {
+        this(f, slabs, false);
+    }
 
-            // read index, numEntries x (dataPointer, dataLength, keySize) 
-            for (int i = 0; i < numEntries; i++) {
-                Block header = new Block((int) file.getFilePointer(), INDEX_ENTRY_SIZE);
-                Block data = new Block(file.readInt(), file.readInt());
-                Entry e = new Entry(header, data, file.readInt());
+    private VoileFile(File f, boolean slabs, boolean recover) throws IOException {
+        super(f, slabs, INDEX_ENTRY_SIZE);
+        index = new HashMap<K, KeyEntry<K>>();
+        if (recover) recover(Runtime.getRuntime().availableProcessors());
+        else open();
+    }
 
-                @SuppressWarnings({"unchecked"})
-                K key = (K) bin2object(readKey(e));
+    /**
+     * opens a file whose index is damaged, rebuilding it from the records.
+     * only records with a good checksum are kept, and for each key the
+     * newest one, see {@link VoileStore#recover}
+     *
+     * @param f the file
+     * @param slabs serve small records from the slabs of the data pool
+     * @return the file, with a new index
+     * @throws java.io.IOException when unlucky
+     */
+    public static <K extends Serializable, V extends Serializable> VoileFile<K, V> recover(File f, boolean slabs) throws IOException {
+        return new VoileFile<K, V>(f, slabs, true);
+    }
 
-                index.put(key, e);
-                entry_list.add(e);
+    /**
+     * converts a file of the old format, from before records had headers,
+     * to this one. the old file has a (numEntries, dataStartPointer) main
+     * header and (dataPointer, dataLength, keySize) index entries pointing
+     * to records that are just the serialized key and value. the entries
+     * are read one at a time and written to a new file by a loader,
+     * which then replaces f
+     *
+     * @param f the file
+     * @return whether it was converted, false if it already is of this format
+     * @throws java.io.IOException when it's of neither format, f is left as it is
+     */
+    public static boolean upgrade(File f) throws IOException {
+        final RandomAccessFile raf = new RandomAccessFile(f, "r");
+        File tmp = new File(f.getPath() + ".upgrade");
+        try {
+            final long length = raf.length();
+            if (length >= INDEX_START && raf.readInt() == FILE_MAGIC) return false;
+
+            raf.seek(0);
+            final int n = length >= OLD_INDEX_START ? raf.readInt() : -1;
+            final int dataStart = n >= 0 ? raf.readInt() : -1;
+            if (n < 0 || dataStart < OLD_INDEX_START + (long) n * OLD_INDEX_ENTRY_SIZE
+                    || (n > 0 && dataStart > length)) {
+                throw new IOException("Not a voile file of the old format either, the file was left as it is.");
+            }
+
+            // the old index, checked before anything gets written
+            final int[] index = new int[3 * n];
+            ByteBuffer index_data = ByteBuffer.allocate(n * OLD_INDEX_ENTRY_SIZE);
+            while (index_data.hasRemaining()) {
+                if (raf.getChannel().read(index_data, OLD_INDEX_START + index_data.position()) < 0) {
+                    throw new IOException("Corrupted: index past the end of the file.");
+                }
             }
-            int p = (int) file.getFilePointer();
-            headerSpace = new MemoryPool(p, dataStartPointer, false);
-
-            int end = (int) file.length();
-            dataSpace = new MemoryPool(end, end, true);
-
-            // re-construct the free space pool based on the
-            // holes missing between the index entries
-            Collections.sort(entry_list, dataPointerComparator);
-            int d_pos = dataStartPointer;
-            for (Entry e : entry_list) {
-                dataSpace.free(new Block(d_pos, e.data.start - d_pos));
-                d_pos = e.data.start + e.data.length;
+            index_data.flip();
+            for (int i = 0; i < index.length; i += 3) {
+                int start = index[i] = index_data.getInt();
+                int len = index[i + 1] = index_data.getInt();
+                int keySize = index[i + 2] = index_data.getInt();
+                if (start < dataStart || len <= keySize || keySize <= 0 || start + (long) len > length) {
+                    throw new IOException("Corrupted: old index entry " + i / 3 + " doesn't point to a record.");
+                }
+            }
+
+            Iterator<Map.Entry<Serializable, Serializable>> entries = new Iterator<Map.Entry<Serializable, Serializable>>() {
+                int i;
+
+                @Override
+                public boolean hasNext() {
+                    return i < index.length;
+                }
+
+                @Override
+                public Map.Entry<Serializable, Serializable> next() {
+                    try {
+                        ByteBuffer record = ByteBuffer.allocate(index[i + 1]);
+                        while (record.hasRemaining()) {
+                            raf.getChannel().read(record, index[i] + record.position());
+                        }
+                        record.flip();
+                        record.limit(index[i + 2]);
+                        Serializable key = bin2object(record.slice());
+                        record.limit(index[i + 1]).position(index[i + 2]);
+                        Serializable value = bin2object(record.slice());
+                        i += 3;
+                        return new AbstractMap.SimpleEntry<Serializable, Serializable>(key, value);
+                    } catch (IOException ex) {
+                        throw new UncheckedIOException(ex);
+                    }
+                }
+            };
+            try {
+                VoileFile.<Serializable, Serializable>loader(tmp).expectedEntries(n).load(entries);
+            } catch (UncheckedIOException ex) {
+                throw ex.getCause();
             }
-            dataSpace.free(new Block(d_pos, end - d_pos));
+            raf.close();
+            Files.move(tmp.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            return true;
+        } finally {
+            raf.close();
+            tmp.delete();
         }
     }
 
+    /**
+     * creates a loader to build a new file from a sequence of entries,
+     * much faster than putting them one by one
+     *
+     * @param f the file to build, replaced if it exists
+     * @return the loader
+     */
+    public static <K extends Serializable, V extends Serializable> VoileLoader<K, V> loader(File f) {
+        return new VoileLoader<K, V>(f);
+    }
+
+    @Override
     public int numEntries() {
         return index.size();
     }
 
+    /**
+     * @return the keys, expired ones are here until they're reclaimed
+     */
     public Set<K> keySet() {
         return index.keySet();
     }
 
     public boolean containsKey(K key) {
-        return index.containsKey(key);
+        return live(index.get(key)) != null;
     }
 
     public V put(K key, V value) throws IOException {
+        return put(key, value, 0);
+    }
 
-        Entry e = index.get(key);
+    /**
+     * like put, but the entry expires after ttl. from then on it's
+     * gone for get and the like, its space is reclaimed in a
+     * batch with the other expired entries, see {@link #expire}
+     *
+     * @param key the key
+     * @param value the value
+     * @param ttl time to live in ms, 0 for never
+     * @return the old value
+     * @throws java.io.IOException when unlucky
+     */
+    public V put(K key, V value, long ttl) throws IOException {
+        final long now = expireDue();
         ByteBuffer key_data = object2bin(key);
-        ByteBuffer value_data = object2bin(value);
-
-        //Logger.getLogger(this.getClass().getName()).log(Level.INFO, "put key[{0}] [{1}]", new Object[]{key, value});
-
-        V old_value = null;
-
-        // if there's already a entry at this key
-        if (e != null) {
-
-            // if we got enough space, update
-            if (value_data.remaining() + e.keySize <= e.data.length) {
-
-                //noinspection unchecked
-                old_value = (V) bin2object(readValue(e)); // get old value first
-
-                // split the data block
-                Block[] split_block = Block.splitBlock(e.data, value_data.remaining() + e.keySize);
-
-                dataSpace.free(split_block[1]); // free extra space
-                e.data = split_block[0]; // store new block
-
-                // write new data
-                chan.write(value_data, e.data.start + e.keySize);
-                writeEntry(e);
-
-                return old_value;
-            }
-            // else, we need to remove and then insert again
-            old_value = remove(key);
-        }
-        // insert new
-
-        e = allocate(key_data.remaining(), value_data.remaining());
-
-        writeData(e, key_data, value_data);
-        writeEntry(e);
-
-        index.put(key, e);
-
-        updateMainHeader();
-
-        return old_value;
+        return putValue(entry(key, key_data), key_data, value, now, ttl);
     }
 
-    public V get(K key) throws IOException {
-        Entry e = index.get(key);
-        if (e == null) return null;
-        //noinspection unchecked
-        return (V) bin2object(readValue(e));
+    /**
+     * stores the bytes of a stream as the value of key, without
+     * ever holding more than one chunk of it in memory.
+     * the value can be read back with getStream or transferTo,
+     * get only works if the bytes are a serialized object.
+     * the entry is marked as a stream value, a put or remove
+     * over it returns null instead of decoding the bytes
+     *
+     * @param key the key
+     * @param in where the value comes from, read until the end
+     * @throws java.io.IOException when unlucky
+     */
+    public void putStream(K key, InputStream in) throws IOException {
+        putChannel(key, Channels.newChannel(in));
     }
 
-    public void close() throws IOException {
-        chan.close();
-        file.close();
+    /**
+     * same as putStream, reading from a channel
+     *
+     * @param key the key
+     * @param in where the value comes from, read until the end
+     * @throws java.io.IOException when unlucky
+     */
+    public void putChannel(K key, ReadableByteChannel in) throws IOException {
+        expireDue();
+        ByteBuffer key_data = object2bin(key);
+        putRawValue(entry(key, key_data), key_data, in);
     }
 
-    public V remove(K key) throws IOException {
-
-        final Entry e = index.get(key);
-        if (e == null) return null;
-
-        //Logger.getLogger(this.getClass().getName()).log(Level.INFO, "remove [{0}]", key);
-
-        @SuppressWarnings({"unchecked"})
-        V old_value = (V) bin2object(readValue(e));
-
-        dataSpace.free(e.data);
-
-        removeEntry(e);
+    public V get(K key) throws IOException {
+        return getValue(index.get(key));
+    }
 
-        index.remove(key);
-        updateMainHeader();
-        return old_value;
+    /**
+     * reads the value bytes of key as they are stored,
+     * without loading the whole value in memory.
+     * any write to the file may move the value and reuse its space,
+     * so once the entry was rewritten, removed, expired or moved
+     * reading the stream throws a IOException instead of returning
+     * other bytes, read it before the next write
+     *
+     * @param key the key
+     * @return the stream or null if there's no such key
+     */
+    public InputStream getStream(K key) {
+        return streamValue(index.get(key));
     }
 
     /**
-     * removes a entry from the header
-     * it swaps the space with the last entry
-     * to keep the header without holes
+     * sends the value bytes of key straight from the file to target
      *
-     * @param e entry
+     * @param key the key
+     * @param target where to write the value
+     * @return the number of bytes transferred, -1 if there's no such key
      * @throws java.io.IOException when unlucky
      */
-    private void removeEntry(Entry e) throws IOException {
-
-        Entry max = e;
-        for (Entry i : index.values()) {
-            if (i.header.start > max.header.start)
-                max = i;
-        }
-        Block last_p = e.header;
-        if (max != e) {
-            last_p = max.header;
-            max.header = e.header;
-            writeEntry(max);
-        }
-        headerSpace.free(last_p);
+    public long transferTo(K key, WritableByteChannel target) throws IOException {
+        return transferValue(index.get(key), target);
     }
 
-
-    private void updateMainHeader() throws IOException {
-        file.seek(0);
-        file.writeInt(index.size());
-        file.writeInt(headerSpace.getLimit());
+    public V remove(K key) throws IOException {
+        final long now = expireDue();
+        return removeValue(index.get(key), now);
     }
 
-    private Entry allocate(int keySize, int valueSize) throws IOException {
-
-        int size = keySize + valueSize;
-
-        freeHeaderSpace();
-        Block header = headerSpace.allocate(INDEX_ENTRY_SIZE);
-        Block data = dataSpace.allocate(size);
-        return new Entry(header, data, keySize);
+    /**
+     * removes key without reading the old value
+     *
+     * @param key the key
+     * @return whether there was such key
+     * @throws java.io.IOException when unlucky
+     */
+    public boolean delete(K key) throws IOException {
+        final long now = expireDue();
+        return deleteValue(index.get(key), now);
     }
 
-    private void freeHeaderSpace() throws IOException {
-        while (!headerSpace.checkSpace(INDEX_ENTRY_SIZE)) {
-            Entry f = findBlockAt(headerSpace.getLimit());
-
-            if (f == null) { // freed maybe ?
-                Block b = dataSpace.allocateAt(headerSpace.getLimit());
-
-                if (b != null) {
-                    headerSpace.free(b); // pass the space to the header
-                    continue;
-                } else {
-                    throw new IOException("Corrupted: Couldn't get extra space for the header.");
-                }
-            }
-
-            // find a new place to the data
-            Block data = dataSpace.allocate(f.data.length);
-
-            // read the data
-            ByteBuffer key_data = readKey(f);
-            ByteBuffer value_data = readValue(f);
-
-            // tell the header the space is free
-            headerSpace.free(f.data);
+    /**
+     * @return the entry of key, or a new one if there's none
+     */
+    private KeyEntry<K> entry(K key, ByteBuffer key_data) {
+        KeyEntry<K> e = index.get(key);
+        if (e == null) e = new KeyEntry<K>(key, key_data.remaining());
+        return e;
+    }
 
-            f.data = data; // set new block
+    /**
+     * index entry: (dataPointer, dataLength, keySize | flags, expires),
+     * the key is serialized at the start of the record
+     */
+    @Override
+    Entry readEntry(Block header, ByteBuffer entry_data) throws IOException {
+        Block data = new Block(entry_data.getInt(), entry_data.getInt());
+        int keySize = entry_data.getInt();
+        KeyEntry<K> e = new KeyEntry<K>(null, keySize & ~ENTRY_FLAGS);
+        e.header = header;
+        e.data = data;
+        e.expires = entry_data.getLong();
+        e.raw = (keySize & RAW_FLAG) != 0;
+
+        if ((keySize & BLOB_FLAG) != 0) readExtents(e);
 
-            // and transfer the data
-            writeData(f, key_data, value_data);
-            writeEntry(f);
-        }
-    }
+        @SuppressWarnings({"unchecked"})
+        K key = (K) bin2object(readKey(e));
+        e.key = key;
 
-    private Entry findBlockAt(int targetFp) {
-        for (Entry e : index.values()) {
-            if (e.data.start == targetFp) return e;
-        }
-        return null;
+        index.put(key, e);
+        schedule(e);
+        return e;
     }
 
-    private void writeEntry(Entry e) throws IOException {
-        file.seek(e.header.start);
-        file.writeInt(e.data.start);
-        file.writeInt(e.data.length);
-        file.writeInt(e.keySize);
+    @Override
+    void encodeEntry(Entry e, ByteBuffer b) {
+        b.putInt(e.data.start);
+        b.putInt(e.data.length);
+        b.putInt(e.keySize | e.flags());
+        b.putLong(e.expires);
     }
 
-    private void writeData(Entry e, ByteBuffer key, ByteBuffer value) throws IOException {
-        chan.write(key, e.data.start);
-        chan.write(value, e.data.start + e.keySize);
+    @Override
+    Iterable<KeyEntry<K>> entries() {
+        return index.values();
     }
 
-    private ByteBuffer readKey(Entry e) throws IOException {
-        ByteBuffer key_data = ByteBuffer.allocate(e.keySize);
-        chan.read(key_data, e.data.start);
-        key_data.rewind();
-        return key_data;
+    @Override
+    Object decodeKey(ByteBuffer key_data) throws IOException {
+        return bin2object(key_data);
     }
 
-    private ByteBuffer readValue(Entry e) throws IOException {
-        ByteBuffer value_data = ByteBuffer.allocate(e.data.length - e.keySize);
-        chan.read(value_data, e.data.start + e.keySize);
-        value_data.rewind();
-        return value_data;
+    @Override
+    @SuppressWarnings({"unchecked"})
+    Entry indexEntry(Object key, Block data, int keySize, long expires) {
+        KeyEntry<K> e = new KeyEntry<K>((K) key, keySize);
+        e.data = data;
+        e.expires = expires;
+        index.put(e.key, e);
+        schedule(e);
+        return e;
     }
 
-    private ByteBuffer object2bin(Serializable o) throws IOException {
-        ByteArrayOutputStream bao = new ByteArrayOutputStream();
-        try {
-            new ObjectOutputStream(bao).writeObject(o);
-        } catch (IOException ex) {
-            throw ex;
-        }
-        return ByteBuffer.wrap(bao.toByteArray());
+    @Override
+    @SuppressWarnings({"unchecked"})
+    void indexAdd(Entry e) {
+        index.put(((KeyEntry<K>) e).key, (KeyEntry<K>) e);
     }
 
-    private Serializable bin2object(ByteBuffer blob) throws IOException {
-        if (blob == null) return null;
-
-        try {
-            return (Serializable) new ObjectInputStream(new ByteBufferInputStream(blob)).readObject();
-        } catch (ClassNotFoundException cnfe) {
-            throw new RuntimeException(cnfe);
-        }
+    @Override
+    @SuppressWarnings({"unchecked"})
+    void indexRemove(Entry e) {
+        index.remove(((KeyEntry<K>) e).key);
     }
 
-    static class Entry {
-        final int keySize;
-
-        Block header;
-        Block data;
+    static class KeyEntry<K> extends Entry {
+        K key;
 
-        Entry(Block header, Block data, int ks) {
-            this.header = header;
-            this.data = data;
-            keySize = ks;
+        KeyEntry(K key, int keySize) {
+            super(null, null, keySize);
+            this.key = key;
         }
     }
 }
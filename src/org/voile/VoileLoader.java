@@ -0,0 +1,423 @@
+package org.voile;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.voile.MemoryPool.Block;
+import org.voile.VoileStore.Entry;
+
+import static org.voile.VoileFile.BLOB_CHUNK_SIZE;
+import static org.voile.VoileFile.BLOB_FLAG;
+import static org.voile.VoileFile.BLOB_THRESHOLD;
+import static org.voile.VoileFile.CHUNK_FLAG;
+import static org.voile.VoileFile.INDEX_ENTRY_SIZE;
+import static org.voile.VoileFile.FILE_MAGIC;
+import static org.voile.VoileFile.FORMAT_VERSION;
+import static org.voile.VoileFile.INDEX_START;
+import static org.voile.VoileFile.INT_SIZE;
+import static org.voile.VoileFile.NO_KEY;
+import static org.voile.VoileFile.RECORD_HEADER_SIZE;
+
+/**
+ * builds a new VoileFile from a sequence of entries.
+ * the header region is sized up front, the records are encoded
+ * and checksummed in parallel, sequence numbers are given out in
+ * the order of the entries, and written sequentially through a large buffer,
+ * then the index is written and the file is synced once.
+ * values bigger than the blob threshold are written as chunks
+ * and a record with their list, like put does.
+ * the result is a normal file that VoileMap can open.
+ *
+ * with a Stream, pass stream.iterator()
+ *
+ * @author fox
+ */
+public class VoileLoader<K extends Serializable, V extends Serializable> {
+
+    private final File file;
+
+    private int expectedEntries = 1024;
+    private int threads = Runtime.getRuntime().availableProcessors();
+    private int batchSize = 1024;
+    private int bufferSize = 4 * 1024 * 1024;
+
+    public VoileLoader(File file) {
+        this.file = file;
+    }
+
+    /**
+     * @param n how many entries to reserve header space for,
+     *          if more are loaded some records get moved at the end
+     * @return this loader
+     */
+    public VoileLoader<K, V> expectedEntries(int n) {
+        expectedEntries = Math.max(n, 0);
+        return this;
+    }
+
+    /**
+     * @param n how many threads encode records
+     * @return this loader
+     */
+    public VoileLoader<K, V> threads(int n) {
+        threads = Math.max(n, 1);
+        return this;
+    }
+
+    /**
+     * @param n how many entries each encoding task gets
+     * @return this loader
+     */
+    public VoileLoader<K, V> batchSize(int n) {
+        batchSize = Math.max(n, 1);
+        return this;
+    }
+
+    /**
+     * @param bytes the size of the write buffer
+     * @return this loader
+     */
+    public VoileLoader<K, V> bufferSize(int bytes) {
+        // the main header and each index entry go through it in one piece
+        bufferSize = Math.max(bytes, Math.max(INDEX_START, INDEX_ENTRY_SIZE));
+        return this;
+    }
+
+    public int load(Map<? extends K, ? extends V> map) throws IOException {
+        return load(map.entrySet().iterator());
+    }
+
+    /**
+     * writes all the entries to the file, when a key shows up
+     * more than once the last value wins
+     *
+     * @param entries the entries to load
+     * @return the number of entries in the file
+     * @throws java.io.IOException when unlucky
+     */
+    public int load(Iterator<? extends Map.Entry<? extends K, ? extends V>> entries) throws IOException {
+        file.delete();
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        FileChannel chan = raf.getChannel();
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            Writer w = new Writer(chan, INDEX_START + expectedEntries * INDEX_ENTRY_SIZE);
+
+            // keep a few batches in flight, writing them in order
+            LinkedList<Future<Batch>> pending = new LinkedList<Future<Batch>>();
+            long seq = 0;
+            while (entries.hasNext()) {
+                final ArrayList<Map.Entry<? extends K, ? extends V>> list =
+                        new ArrayList<Map.Entry<? extends K, ? extends V>>(batchSize);
+                while (list.size() < batchSize && entries.hasNext()) {
+                    list.add(entries.next());
+                }
+                final long first = seq;
+                seq += list.size();
+                pending.add(pool.submit(new Callable<Batch>() {
+                    @Override
+                    public Batch call() throws IOException {
+                        return encode(list, first);
+                    }
+                }));
+                if (pending.size() > 2 * threads) {
+                    w.write(waitFor(pending.removeFirst()));
+                }
+            }
+            while (!pending.isEmpty()) {
+                w.write(waitFor(pending.removeFirst()));
+            }
+
+            int n = w.finish(seq);
+            chan.force(true);
+            return n;
+        } finally {
+            pool.shutdownNow();
+            chan.close();
+            raf.close();
+        }
+    }
+
+    private Batch encode(ArrayList<Map.Entry<? extends K, ? extends V>> list, long seq) throws IOException {
+        Batch b = new Batch(list.size(), seq);
+        for (Map.Entry<? extends K, ? extends V> e : list) {
+            ByteBuffer key = VoileFile.object2bin(e.getKey());
+            ByteBuffer value = VoileFile.object2bin(e.getValue());
+            b.keys.add(e.getKey());
+            b.key_data.add(key);
+            if (value.remaining() > BLOB_THRESHOLD) {
+                // the chunks are ready to write, the record with
+                // their list waits until they have a place
+                b.heads.add(null);
+                b.value_data.add(null);
+                b.chunks.add(chunks(value, seq));
+            } else {
+                b.heads.add(VoileFile.recordHeader(0, seq, 0, key, value));
+                b.value_data.add(value);
+                b.chunks.add(null);
+            }
+            seq++;
+        }
+        return b;
+    }
+
+    /**
+     * cuts a big value in chunks, they get the sequence number of their entry
+     *
+     * @return the header and the bytes of each chunk, one after the other
+     */
+    private static ByteBuffer[] chunks(ByteBuffer value, long seq) {
+        int n = (value.remaining() + BLOB_CHUNK_SIZE - 1) / BLOB_CHUNK_SIZE;
+        ByteBuffer[] chunks = new ByteBuffer[2 * n];
+        for (int i = 0; i < n; i++) {
+            ByteBuffer chunk = value.duplicate();
+            chunk.position(value.position() + i * BLOB_CHUNK_SIZE);
+            chunk.limit(Math.min(chunk.position() + BLOB_CHUNK_SIZE, value.limit()));
+            chunk = chunk.slice();
+            chunks[2 * i] = VoileFile.recordHeader(CHUNK_FLAG, seq, 0, NO_KEY, chunk);
+            chunks[2 * i + 1] = chunk;
+        }
+        return chunks;
+    }
+
+    private Batch waitFor(Future<Batch> f) throws IOException {
+        try {
+            return f.get();
+        } catch (InterruptedException ex) {
+            throw new InterruptedIOException(ex.getMessage());
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof IOException) throw (IOException) ex.getCause();
+            throw new RuntimeException(ex.getCause());
+        }
+    }
+
+    private class Batch {
+        final ArrayList<K> keys;
+        final ArrayList<ByteBuffer> heads;
+        final ArrayList<ByteBuffer> key_data;
+        final ArrayList<ByteBuffer> value_data;
+        // only for blobs, from chunks
+        final ArrayList<ByteBuffer[]> chunks;
+        // the sequence number of the first entry
+        final long first;
+
+        Batch(int size, long first) {
+            keys = new ArrayList<K>(size);
+            heads = new ArrayList<ByteBuffer>(size);
+            key_data = new ArrayList<ByteBuffer>(size);
+            value_data = new ArrayList<ByteBuffer>(size);
+            chunks = new ArrayList<ByteBuffer[]>(size);
+            this.first = first;
+        }
+    }
+
+    /**
+     * appends records one after the other, remembering
+     * where each key ended up
+     */
+    private class Writer {
+        final FileChannel chan;
+        final ByteBuffer buf;
+        final HashMap<K, Entry> index;
+
+        // records of repeated keys, to be marked dead
+        final ArrayList<Integer> dead = new ArrayList<Integer>();
+
+        int dataStart;
+        int bufStart; // file position of the buffer
+        int pos; // file position of the next record
+
+        Writer(FileChannel chan, int dataStart) {
+            this.chan = chan;
+            this.dataStart = dataStart;
+            buf = ByteBuffer.allocateDirect(bufferSize);
+            index = new HashMap<K, Entry>();
+            bufStart = pos = dataStart;
+        }
+
+        void write(Batch b) throws IOException {
+            for (int i = 0; i < b.keys.size(); i++) {
+                ByteBuffer head = b.heads.get(i);
+                ByteBuffer key = b.key_data.get(i);
+                ByteBuffer value = b.value_data.get(i);
+                ByteBuffer[] chunks = b.chunks.get(i);
+
+                Block[] extents = null;
+                if (chunks != null) {
+                    extents = new Block[chunks.length / 2];
+                    for (int j = 0; j < extents.length; j++) {
+                        extents[j] = append(chunks[2 * j], NO_KEY, chunks[2 * j + 1]);
+                    }
+                    value = VoileFile.extents2bin(extents);
+                    head = VoileFile.recordHeader(BLOB_FLAG, b.first + i, 0, key, value);
+                }
+
+                int keySize = key.remaining();
+                Entry e = new Entry(null, append(head, key, value), keySize);
+                e.extents = extents;
+
+                // the previous record of a repeated key just becomes a hole,
+                // the chunks of a blob go with it
+                Entry old = index.put(b.keys.get(i), e);
+                if (old != null) dead.add(old.data.start);
+            }
+        }
+
+        /**
+         * @return where the record went
+         */
+        private Block append(ByteBuffer head, ByteBuffer key, ByteBuffer value) throws IOException {
+            int keySize = key.remaining();
+            int size = RECORD_HEADER_SIZE + keySize + value.remaining();
+            if (size > buf.remaining()) flush();
+            if (size > buf.remaining()) { // too big to buffer
+                chan.write(head, pos);
+                chan.write(key, pos + RECORD_HEADER_SIZE);
+                chan.write(value, pos + RECORD_HEADER_SIZE + keySize);
+                bufStart += size;
+            } else {
+                buf.put(head);
+                buf.put(key);
+                buf.put(value);
+            }
+            Block b = new Block(pos, size);
+            pos += size;
+            return b;
+        }
+
+        void flush() throws IOException {
+            buf.flip();
+            while (buf.hasRemaining()) {
+                bufStart += chan.write(buf, bufStart);
+            }
+            buf.clear();
+        }
+
+        /**
+         * writes the index and the main header
+         * @param seqLimit the first sequence number not given out
+         * @return the number of entries
+         */
+        int finish(long seqLimit) throws IOException {
+            flush();
+
+            for (int p : dead) {
+                buf.putInt(0);
+                buf.flip();
+                chan.write(buf, p);
+                buf.clear();
+            }
+
+            int n = index.size();
+            int headerEnd = INDEX_START + n * INDEX_ENTRY_SIZE;
+
+            // not enough room reserved, move the first records to the end
+            if (headerEnd > dataStart) {
+                int cut = headerEnd;
+                for (Entry e : index.values()) {
+                    cut = cover(cut, headerEnd, e.data);
+                    if (e.extents == null) continue;
+                    for (Block b : e.extents) cut = cover(cut, headerEnd, b);
+                }
+                cut = Math.min(cut, pos);
+
+                int dest = Math.max(pos, headerEnd);
+                int delta = dest - dataStart;
+                for (int p = dataStart; p < cut; ) {
+                    buf.limit(Math.min(buf.capacity(), cut - p));
+                    while (buf.hasRemaining()) chan.read(buf, p + buf.position());
+                    buf.flip();
+                    while (buf.hasRemaining()) chan.write(buf, p + delta + buf.position());
+                    p += buf.limit();
+                    buf.clear();
+                }
+                for (Entry e : index.values()) {
+                    if (e.data.start < cut) e.data = new Block(e.data.start + delta, e.data.length);
+                    if (e.extents == null) continue;
+
+                    // a blob whose chunks moved gets a new chunk list
+                    boolean moved = false;
+                    for (int i = 0; i < e.extents.length; i++) {
+                        Block b = e.extents[i];
+                        if (b.start < cut) {
+                            e.extents[i] = new Block(b.start + delta, b.length);
+                            moved = true;
+                        }
+                    }
+                    if (moved) rewriteBlob(e);
+                }
+
+                // wipe the old copies left past the index
+                for (int p = headerEnd; p < cut; ) {
+                    buf.limit(Math.min(buf.capacity(), cut - p));
+                    while (buf.hasRemaining()) buf.put((byte) 0);
+                    buf.flip();
+                    while (buf.hasRemaining()) chan.write(buf, p + buf.position());
+                    p += buf.limit();
+                    buf.clear();
+                }
+
+                pos = dest + cut - dataStart;
+                dataStart = Math.max(cut, headerEnd);
+            }
+
+            bufStart = INDEX_START;
+            for (Entry e : index.values()) {
+                if (buf.remaining() < INDEX_ENTRY_SIZE) flush();
+                buf.putInt(e.data.start);
+                buf.putInt(e.data.length);
+                buf.putInt(e.keySize | e.flags());
+                buf.putLong(e.expires);
+            }
+            flush();
+
+            bufStart = 0;
+            buf.putInt(FILE_MAGIC);
+            buf.putInt(FORMAT_VERSION);
+            buf.putInt(n);
+            buf.putInt(dataStart);
+            buf.putLong(seqLimit);
+            flush();
+
+            return n;
+        }
+
+        /**
+         * @return cut, widened to the end of b if b starts before headerEnd
+         */
+        private int cover(int cut, int headerEnd, Block b) {
+            return b.start < headerEnd ? Math.max(cut, b.start + b.length) : cut;
+        }
+
+        /**
+         * writes the record of a blob again with its new chunk list,
+         * keeping the key and the sequence number it had
+         */
+        private void rewriteBlob(Entry e) throws IOException {
+            ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_SIZE + e.keySize);
+            while (record.hasRemaining()) chan.read(record, e.data.start + record.position());
+            long seq = record.getLong(3 * INT_SIZE);
+            record.position(RECORD_HEADER_SIZE);
+            ByteBuffer key = record.slice();
+            ByteBuffer value = VoileFile.extents2bin(e.extents);
+            ByteBuffer head = VoileFile.recordHeader(BLOB_FLAG, seq, 0, key, value);
+            chan.write(head, e.data.start);
+            chan.write(value, e.data.start + RECORD_HEADER_SIZE + e.keySize);
+        }
+    }
+}
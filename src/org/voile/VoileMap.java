@@ -1,6 +1,7 @@
 package org.voile;
 
 import java.io.*;
+import java.nio.channels.WritableByteChannel;
 import java.util.Collection;
 import java.util.Map;
 import java.util.Set;
@@ -14,15 +15,46 @@ public class VoileMap <K extends Serializable, V extends Serializable> implement
     private VoileFile<K,V> vf;
     private final File file;
 
+    private final boolean slabs;
+
     public VoileMap(File file) {
+        this(file, false);
+    }
+
+    /**
+     * @param file the file
+     * @param slabs serve small records from slabs, see {@link MemoryPool}
+     */
+    public VoileMap(File file, boolean slabs) {
+        this(file, slabs, false);
+    }
+
+    private VoileMap(File file, boolean slabs, boolean recover) {
         this.file = file;
+        this.slabs = slabs;
         try {
-            vf = new VoileFile<K,V>(file);
+            vf = recover ? VoileFile.<K,V>recover(file, slabs) : new VoileFile<K,V>(file, slabs);
         } catch (IOException ex) {
             throw new RuntimeException(ex);
         }
     }
 
+    /**
+     * opens a map whose file has a damaged index,
+     * rebuilding it from the records, see {@link VoileFile#recover}
+     *
+     * @param file the file
+     * @param slabs serve small records from slabs, see {@link MemoryPool}
+     * @return the map
+     */
+    public static <K extends Serializable, V extends Serializable> VoileMap<K,V> recover(File file, boolean slabs) {
+        return new VoileMap<K,V>(file, slabs, true);
+    }
+
+    /**
+     * expired entries count until they're reclaimed,
+     * call expire first for an exact size
+     */
     @Override
     public int size() {
         return vf.numEntries();
@@ -61,6 +93,18 @@ public class VoileMap <K extends Serializable, V extends Serializable> implement
         }
     }
 
+    /**
+     * puts k, expiring after ttl ms, see {@link VoileFile#put(Serializable, Serializable, long)}
+     * @return the old value
+     */
+    public V put(K k, V v, long ttl) {
+        try {
+            return vf.put(k, v, ttl);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
     @Override
     public V remove(Object o) {
         try {
@@ -70,6 +114,63 @@ public class VoileMap <K extends Serializable, V extends Serializable> implement
         }
     }
 
+    /**
+     * stores the bytes of a stream as the value of k,
+     * big values are written in chunks and never fully held in memory.
+     * put and remove return null over such values
+     */
+    public void putStream(K k, InputStream in) {
+        try {
+            vf.putStream(k, in);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * the stream fails once a write changed or moved the value
+     * @return the value bytes of k as stored, or null if there's no such key
+     */
+    public InputStream getStream(K k) {
+        return vf.getStream(k);
+    }
+
+    /**
+     * sends the value bytes of k straight from the file to target
+     * @return the number of bytes transferred, -1 if there's no such key
+     */
+    public long transferTo(K k, WritableByteChannel target) {
+        try {
+            return vf.transferTo(k, target);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * removes k without reading the old value
+     * @return whether there was such key
+     */
+    public boolean delete(K k) {
+        try {
+            return vf.delete(k);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * reclaims the expired entries now instead of on a later write
+     * @return how many entries were reclaimed
+     */
+    public int expire() {
+        try {
+            return vf.expire();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
     @Override
     public void putAll(Map<? extends K, ? extends V> map) {
         for(Entry<? extends K, ? extends V> e : map.entrySet())
@@ -82,12 +183,15 @@ public class VoileMap <K extends Serializable, V extends Serializable> implement
             vf.close();
             file.delete();
             file.createNewFile();
-            vf = new VoileFile<K,V>(file);
+            vf = new VoileFile<K,V>(file, slabs);
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
     }
 
+    /**
+     * expired keys are here until they're reclaimed, see expire
+     */
     @Override
     public Set<K> keySet() {
         return vf.keySet();
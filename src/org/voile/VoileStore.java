@@ -0,0 +1,1321 @@
+package org.voile;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32C;
+
+import org.voile.MemoryPool.Block;
+
+/**
+ * the file layout shared by the maps, a main header, a header region
+ * with one fixed size index entry per key and a data region with the
+ * records. subclasses decide how keys are kept in the index
+ * entries and records, and in memory
+ *
+ * every record and blob chunk starts with its own header,
+ * (magic, payload length, keySize and flags, sequence number, expiry, crc32c)
+ * followed by the key and the value, so the records alone are
+ * enough to rebuild the index, see {@link #recover}
+ *
+ * @author fox
+ */
+public abstract class VoileStore<V extends Serializable> {
+
+    static final int INT_SIZE = Integer.SIZE / Byte.SIZE;
+
+    static final int LONG_SIZE = Long.SIZE / Byte.SIZE;
+
+    // main header: (magic, version, numEntries, dataStartPointer, seqLimit)
+    static final int INDEX_START = 4 * INT_SIZE + LONG_SIZE;
+
+    static final int FILE_MAGIC = 0x766f696c;
+    // bumped on every change of the layout,
+    // 2 added the expiry to index entries and record headers
+    static final int FORMAT_VERSION = 2;
+
+    // values bigger than this are stored as a list of chunks (a blob)
+    // instead of one contiguous block, chunks are at most BLOB_CHUNK_SIZE
+    static final int BLOB_THRESHOLD = 64 * 1024;
+    static final int BLOB_CHUNK_SIZE = 256 * 1024;
+
+    // set on a field of the index entry and on the record header of blobs
+    static final int BLOB_FLAG = 1 << 31;
+
+    static final int RECORD_MAGIC = 0x566f694c;
+    static final int RECORD_HEADER_SIZE = 4 * INT_SIZE + 2 * LONG_SIZE;
+
+    // set on the keySize field of the record header of blob chunks
+    static final int CHUNK_FLAG = 1 << 30;
+
+    // set like BLOB_FLAG on values stored from a stream, their
+    // bytes aren't a serialized object so they're never decoded
+    static final int RAW_FLAG = 1 << 29;
+
+    static final int ENTRY_FLAGS = BLOB_FLAG | RAW_FLAG;
+    static final int RECORD_FLAGS = BLOB_FLAG | CHUNK_FLAG | RAW_FLAG;
+
+    static final ByteBuffer NO_KEY = ByteBuffer.allocate(0);
+
+    // how many sequence numbers are reserved at a time in the main header
+    private static final int SEQ_RESERVE = 4096;
+
+    // how many index entries are read at once when opening
+    private static final int READ_BATCH = 64 * 1024;
+
+    private static final Comparator<Piece> piecePointerComparator = new Comparator<Piece>() {
+        @Override
+        public int compare(Piece p1, Piece p2) {
+            return p1.block.start - p2.block.start;
+        }
+    };
+
+    final RandomAccessFile file;
+    final FileChannel chan;
+
+    private final boolean slabs;
+    private final int entrySize;
+
+    MemoryPool headerSpace;
+    MemoryPool dataSpace;
+
+    // the entries in the order of their index entries, the
+    // header has no holes so the last ones are at the end
+    private final ArrayList<Entry> slots = new ArrayList<Entry>();
+
+    // the entries that expire
+    private final TimeWheel<Entry> wheel = new TimeWheel<Entry>(System.currentTimeMillis());
+
+    // next sequence number, and the end of the reserved range
+    private long seq;
+    private long seqLimit;
+
+    /**
+     * @param f the file
+     * @param slabs serve small records from the slabs of the data pool
+     * @param entrySize the size of a index entry
+     * @throws java.io.IOException when unlucky
+     */
+    VoileStore(File f, boolean slabs, int entrySize) throws IOException {
+        this.slabs = slabs;
+        this.entrySize = entrySize;
+        file = new RandomAccessFile(f, "rw");
+        chan = file.getChannel();
+    }
+
+    /**
+     * reads the index, or sets up a new file.
+     * called by the subclasses once they are ready to take entries
+     *
+     * @throws java.io.IOException when unlucky
+     */
+    void open() throws IOException {
+        // the header region starts with room for a few entries and
+        // at least doubles every time it runs out of space
+        final int initialHeader = INDEX_START + 5 * entrySize;
+
+        if (file.length() == 0) { // new file
+            int dataStartPointer = initialHeader;
+            headerSpace = new MemoryPool(INDEX_START, dataStartPointer, false);
+            dataSpace = new MemoryPool(dataStartPointer, 2 * dataStartPointer, true, slabs);
+            updateMainHeader();
+        }
+        else {
+            // read existing file
+            if (!readFormat()) {
+                throw new IOException("Not a voile file of this format, the main header has no format marker,"
+                        + " a file written by an older version can be converted with VoileFile.upgrade.");
+            }
+            final int numEntries = file.readInt();
+            final int dataStartPointer = file.readInt();
+            seq = seqLimit = file.readLong();
+
+            ArrayList<Entry> entry_list = new ArrayList<Entry>(numEntries);
+
+            // read the index in big batches
+            int batch = Math.max(1, READ_BATCH / entrySize);
+            ByteBuffer entry_data = ByteBuffer.allocate(batch * entrySize);
+            for (int i = 0; i < numEntries; i += batch) {
+                int pos = INDEX_START + i * entrySize;
+                entry_data.clear();
+                entry_data.limit(Math.min(batch, numEntries - i) * entrySize);
+                while (entry_data.hasRemaining()) {
+                    if (chan.read(entry_data, pos + entry_data.position()) < 0) {
+                        throw new IOException("Corrupted: index past the end of the file.");
+                    }
+                }
+                entry_data.flip();
+                for (int j = 0; entry_data.hasRemaining(); j++) {
+                    Block header = new Block(pos + j * entrySize, entrySize);
+                    Entry e = readEntry(header, entry_data);
+                    entry_list.add(e);
+                    slots.add(e);
+                }
+            }
+            int p = INDEX_START + numEntries * entrySize;
+            headerSpace = new MemoryPool(p, dataStartPointer, false);
+
+            int end = Math.max((int) file.length(), dataStartPointer);
+            dataSpace = new MemoryPool(end, end, true, slabs);
+
+            // re-construct the free space pool based on the
+            // holes missing between the records and blob chunks
+            ArrayList<Block> used = new ArrayList<Block>(numEntries);
+            for (Entry e : entry_list) {
+                used.add(e.data);
+                if (e.extents != null) Collections.addAll(used, e.extents);
+            }
+            Collections.sort(used);
+            dataSpace.rebuild(dataStartPointer, end, used);
+        }
+    }
+
+    /**
+     * reads one index entry and adds it to the index
+     *
+     * @param header where the entry is
+     * @param entry_data the entry, at the buffer position
+     * @return the entry
+     * @throws java.io.IOException when unlucky
+     */
+    abstract Entry readEntry(Block header, ByteBuffer entry_data) throws IOException;
+
+    /**
+     * puts the index entry of e in the buffer
+     *
+     * @param e entry
+     * @param entry_data where to put it
+     */
+    abstract void encodeEntry(Entry e, ByteBuffer entry_data);
+
+    /**
+     * @return every entry in the index
+     */
+    abstract Iterable<? extends Entry> entries();
+
+    public abstract int numEntries();
+
+    /**
+     * turns the key bytes of a record back into a key,
+     * called from the threads of a recovery scan
+     *
+     * @param key_data the key bytes of the record
+     * @return the key, equal to the key of any other record of the same key
+     * @throws java.io.IOException when the bytes aren't a key
+     */
+    abstract Object decodeKey(ByteBuffer key_data) throws IOException;
+
+    /**
+     * adds a recovered record to the index, without a index entry yet
+     *
+     * @param key the key, from decodeKey
+     * @param data the record
+     * @param keySize the size of the key in the record
+     * @param expires when the entry expires, 0 for never
+     * @return the entry
+     */
+    abstract Entry indexEntry(Object key, Block data, int keySize, long expires);
+
+    /**
+     * puts a entry in the key table, under its key
+     *
+     * @param e the entry
+     */
+    abstract void indexAdd(Entry e);
+
+    /**
+     * takes the key of a entry out of the key table
+     *
+     * @param e the entry
+     */
+    abstract void indexRemove(Entry e);
+
+    /**
+     * rebuilds the index and the free space from the records alone,
+     * for when the header region can't be trusted.
+     * the data region is scanned in parallel for records with a
+     * good checksum, the newest record of each key wins if it didn't
+     * expire and blobs need all their chunks. the records that lost are marked dead so they
+     * can't come back, then the whole header region is written anew
+     *
+     * @param threads how many threads scan the file
+     * @throws java.io.IOException when unlucky
+     */
+    void recover(int threads) throws IOException {
+        final int end = (int) file.length();
+
+        // the main header may be wrecked too, then the
+        // records alone tell whether it's a file of this format
+        final boolean marked = readFormat();
+        List<RecordScanner.Record> records = new RecordScanner(this, threads).scan(INDEX_START, end);
+        if (!marked && records.isEmpty() && end > 0) {
+            throw new IOException("Not a voile file of this format, no format marker and no records found,"
+                    + " the file was left as it is. A file written by an older version can be converted"
+                    + " with VoileFile.upgrade.");
+        }
+
+        long maxSeq = -1;
+        HashMap<Integer, RecordScanner.Record> chunks = new HashMap<Integer, RecordScanner.Record>();
+        HashMap<Object, RecordScanner.Record> newest = new HashMap<Object, RecordScanner.Record>();
+        ArrayList<RecordScanner.Record> dead = new ArrayList<RecordScanner.Record>();
+
+        for (RecordScanner.Record r : records) {
+            maxSeq = Math.max(maxSeq, r.seq);
+            if (r.key == null) { // blob chunk
+                chunks.put(r.block.start, r);
+                continue;
+            }
+            RecordScanner.Record other = newest.put(r.key, r);
+            if (other != null) {
+                if (other.seq > r.seq) {
+                    newest.put(r.key, other);
+                    other = r;
+                }
+                dead.add(other);
+            }
+        }
+
+        final long now = System.currentTimeMillis();
+        ArrayList<Entry> recovered = new ArrayList<Entry>(newest.size());
+        ArrayList<Block> used = new ArrayList<Block>();
+        for (RecordScanner.Record r : newest.values()) {
+            if (r.expires != 0 && r.expires <= now) {
+                dead.add(r);
+                continue;
+            }
+            if (r.extents != null && !hasChunks(r, chunks)) {
+                Logger.getLogger(getClass().getName()).log(Level.WARNING,
+                        "dropping blob at {0}, chunks are missing", r.block.start);
+                dead.add(r);
+                continue;
+            }
+            Entry e = indexEntry(r.key, r.block, r.keySize, r.expires);
+            e.extents = r.extents;
+            e.raw = r.raw;
+            recovered.add(e);
+            used.add(e.data);
+            if (e.extents != null) Collections.addAll(used, e.extents);
+        }
+        for (RecordScanner.Record r : dead) kill(r.block);
+
+        Collections.sort(used);
+        headerSpace = new MemoryPool(INDEX_START, INDEX_START, false);
+        dataSpace = new MemoryPool(end, end, true, slabs);
+        dataSpace.rebuild(INDEX_START, end, used);
+
+        // grow the header once for the whole index, the records in the way move
+        freeHeaderSpace(recovered.size() * entrySize);
+
+        // and write it in big batches
+        ByteBuffer entry_data = ByteBuffer.allocate(Math.max(1, READ_BATCH / entrySize) * entrySize);
+        int pos = INDEX_START;
+        slots.clear();
+        for (Entry e : recovered) {
+            e.header = headerSpace.allocate(entrySize);
+            slots.add(e);
+            encodeEntry(e, entry_data);
+            if (!entry_data.hasRemaining()) pos += flushEntries(entry_data, pos);
+        }
+        flushEntries(entry_data, pos);
+
+        seq = seqLimit = maxSeq + 1;
+        updateMainHeader();
+        chan.force(true);
+    }
+
+    /**
+     * @return how many bytes were written at pos
+     */
+    private int flushEntries(ByteBuffer entry_data, int pos) throws IOException {
+        entry_data.flip();
+        int n = entry_data.remaining();
+        while (entry_data.hasRemaining()) {
+            chan.write(entry_data, pos + entry_data.position());
+        }
+        entry_data.clear();
+        return n;
+    }
+
+    /**
+     * @return whether every chunk of the blob was found as it is listed
+     */
+    private static boolean hasChunks(RecordScanner.Record r, HashMap<Integer, RecordScanner.Record> chunks) {
+        for (Block b : r.extents) {
+            RecordScanner.Record c = chunks.get(b.start);
+            if (c == null || c.block.length != b.length) return false;
+        }
+        return true;
+    }
+
+    public void close() throws IOException {
+        chan.close();
+        file.close();
+    }
+
+    /**
+     * reclaims the expired entries if a tick of the wheel went by,
+     * writes call it before looking their key up
+     *
+     * @return the current time, in ms
+     * @throws java.io.IOException when unlucky
+     */
+    long expireDue() throws IOException {
+        final long now = System.currentTimeMillis();
+        if (wheel.due(now)) expire(now);
+        return now;
+    }
+
+    /**
+     * stores a value, the key types only look up the entry and encode the key.
+     * a entry whose new value doesn't fit leaves the key table and
+     * comes back with new space
+     *
+     * @param e the entry of the key, from the key table or a new one
+     * @param key_data the key bytes for the record
+     * @param value the value
+     * @param now the time from expireDue
+     * @param ttl time to live in ms, 0 for never
+     * @return the old value, null if there was none, it expired or it's a stream value
+     * @throws java.io.IOException when unlucky
+     */
+    V putValue(Entry e, ByteBuffer key_data, V value, long now, long ttl) throws IOException {
+
+        // make room for the index entry before any blob chunk gets written
+        freeHeaderSpace();
+
+        // big values spill to chunks while they are serialized
+        BlobWriter w = new BlobWriter();
+        ByteBuffer value_data = encode(value, w);
+
+        //Logger.getLogger(this.getClass().getName()).log(Level.INFO, "put [{0}]", value);
+
+        try {
+            V old_value = null;
+
+            // if there's already a entry at this key, new ones have no header yet
+            if (e.header != null) {
+
+                // get old value first, stream values have none
+                if (!e.expired(now) && !e.raw) old_value = readObject(e);
+
+                unschedule(e);
+                e.keySize = key_data.remaining();
+                e.expires = expiry(now, ttl);
+                e.raw = false;
+
+                // if we got enough space, update
+                if (update(e, key_data, value_data)) {
+                    schedule(e);
+                    return old_value;
+                }
+
+                // else, we need to remove and then insert again
+                discard(e);
+                indexRemove(e);
+                e.extents = null;
+            }
+            // insert new
+
+            e.expires = expiry(now, ttl);
+            insert(e, key_data, value_data, w);
+            indexAdd(e);
+            schedule(e);
+
+            updateMainHeader();
+
+            return old_value;
+        } finally {
+            w.discard();
+        }
+    }
+
+    /**
+     * stores the bytes of a channel as a stream value, see putValue
+     *
+     * @param e the entry of the key, from the key table or a new one
+     * @param key_data the key bytes for the record
+     * @param in where the value comes from, read until the end
+     * @throws java.io.IOException when unlucky
+     */
+    void putRawValue(Entry e, ByteBuffer key_data, ReadableByteChannel in) throws IOException {
+
+        freeHeaderSpace();
+
+        BlobWriter w = new BlobWriter();
+        ByteBuffer value_data = encode(in, w);
+
+        try {
+            if (e.header != null) {
+                unschedule(e);
+                discard(e);
+                indexRemove(e);
+                e.keySize = key_data.remaining();
+                e.extents = null;
+            }
+
+            e.expires = 0;
+            e.raw = true;
+            insert(e, key_data, value_data, w);
+            indexAdd(e);
+
+            updateMainHeader();
+        } finally {
+            w.discard();
+        }
+    }
+
+    /**
+     * @param e the entry of the key, or null
+     * @return the value, null if there's no entry or it expired
+     * @throws java.io.IOException when unlucky
+     */
+    V getValue(Entry e) throws IOException {
+        e = live(e);
+        if (e == null) return null;
+        return readObject(e);
+    }
+
+    /**
+     * @param e the entry of the key, or null
+     * @param now the time from expireDue
+     * @return the old value, null if there was none, it expired or it's a stream value
+     * @throws java.io.IOException when unlucky
+     */
+    V removeValue(Entry e, long now) throws IOException {
+        if (e == null) return null;
+
+        //Logger.getLogger(this.getClass().getName()).log(Level.INFO, "remove [{0}]", e.data);
+
+        V old_value = e.expired(now) || e.raw ? null : readObject(e);
+        drop(e);
+        return old_value;
+    }
+
+    /**
+     * removes without reading the old value
+     *
+     * @param e the entry of the key, or null
+     * @param now the time from expireDue
+     * @return whether there was a entry that didn't expire
+     * @throws java.io.IOException when unlucky
+     */
+    boolean deleteValue(Entry e, long now) throws IOException {
+        if (e == null) return false;
+
+        drop(e);
+        return !e.expired(now);
+    }
+
+    private void drop(Entry e) throws IOException {
+        unschedule(e);
+        discard(e);
+        indexRemove(e);
+
+        updateMainHeader();
+    }
+
+    /**
+     * reclaims the space of the entries that expired, all in one batch.
+     * writes do this on their own once in a while, call it to
+     * reclaim space sooner or to keep numEntries and the keys exact
+     *
+     * @return how many entries were reclaimed
+     * @throws java.io.IOException when unlucky
+     */
+    public int expire() throws IOException {
+        return expire(System.currentTimeMillis());
+    }
+
+    private int expire(long now) throws IOException {
+        List<Entry> dead = wheel.advance(now);
+        if (dead.isEmpty()) return 0;
+
+        reclaim(dead);
+        for (Entry e : dead) indexRemove(e);
+
+        updateMainHeader();
+        return dead.size();
+    }
+
+    /**
+     * @param e the entry of a key, or null
+     * @return the entry, if there is one and it didn't expire
+     */
+    static Entry live(Entry e) {
+        if (e == null || e.expired(System.currentTimeMillis())) return null;
+        return e;
+    }
+
+    void schedule(Entry e) {
+        if (e.expires != 0) wheel.add(e, e.expires);
+    }
+
+    private void unschedule(Entry e) {
+        if (e.expires != 0) wheel.remove(e, e.expires);
+    }
+
+    /**
+     * serializes the value, spilling to chunks when it gets big
+     *
+     * @return the value, or null when it went to the chunks of w
+     */
+    ByteBuffer encode(V value, BlobWriter w) throws IOException {
+        try {
+            new ObjectOutputStream(w).writeObject(value);
+            return w.finish();
+        } catch (IOException ex) {
+            w.discard();
+            throw ex;
+        }
+    }
+
+    /**
+     * copies the channel, spilling to chunks when it gets big
+     *
+     * @return the value, or null when it went to the chunks of w
+     */
+    ByteBuffer encode(ReadableByteChannel in, BlobWriter w) throws IOException {
+        try {
+            w.readFrom(in);
+            return w.finish();
+        } catch (IOException ex) {
+            w.discard();
+            throw ex;
+        }
+    }
+
+    /**
+     * writes the new value of e where it is, if it fits
+     *
+     * @param key_data the key bytes for the record
+     * @param value_data the value, or null when it's a blob
+     * @return whether it did
+     * @throws java.io.IOException when unlucky
+     */
+    boolean update(Entry e, ByteBuffer key_data, ByteBuffer value_data) throws IOException {
+        if (value_data == null || e.extents != null) return false;
+
+        // shrink the data block, or change slots in place
+        Block resized = dataSpace.reallocate(e.data, RECORD_HEADER_SIZE + e.keySize + value_data.remaining());
+        if (resized == null) return false;
+
+        e.data = resized; // store new block
+        e.changes++;
+
+        // write new data, with a new record header
+        writeData(e, key_data, value_data);
+        writeEntry(e);
+        return true;
+    }
+
+    /**
+     * stores a new entry, blobs get a record with
+     * the key and the list of chunks with the value.
+     * the index shouldn't hold a entry that was discarded
+     *
+     * @param e the new entry, without any space yet
+     * @param key_data the key bytes for the record
+     * @param value_data the value, or null when it went to the chunks of w
+     * @param w the writer of the value, its chunks are kept only once this returns
+     * @throws java.io.IOException when unlucky
+     */
+    void insert(Entry e, ByteBuffer key_data, ByteBuffer value_data, BlobWriter w) throws IOException {
+        if (value_data == null) {
+            e.extents = w.extents.toArray(new Block[w.extents.size()]);
+            value_data = extents2bin(e.extents);
+        }
+
+        freeHeaderSpace();
+        e.header = headerSpace.allocate(entrySize);
+        slots.add(e);
+        e.data = dataSpace.allocate(RECORD_HEADER_SIZE + e.keySize + value_data.remaining());
+
+        writeData(e, key_data, value_data);
+        writeEntry(e);
+
+        // the chunks belong to the entry now
+        w.extents.clear();
+    }
+
+    /**
+     * frees everything used by a entry, it has to
+     * leave the index right after. the record is marked dead,
+     * its chunks are useless without it
+     *
+     * @param e entry
+     * @throws java.io.IOException when unlucky
+     */
+    void discard(Entry e) throws IOException {
+        e.changes++;
+        kill(e.data);
+        dataSpace.free(e.data);
+        if (e.extents != null) {
+            for (Block b : e.extents) dataSpace.free(b);
+        }
+
+        removeEntry(e);
+    }
+
+    /**
+     * frees everything used by many entries at once, they have to
+     * leave the index right after. the blocks go back to the data pool
+     * in one sorted batch and the header is compacted, the live entries
+     * among the last ones of the header move into the holes, so it
+     * only looks at as many entries as there are dead ones.
+     * the records aren't marked dead, a recovery drops them as expired
+     *
+     * @param dead the entries
+     * @throws java.io.IOException when unlucky
+     */
+    void reclaim(Collection<? extends Entry> dead) throws IOException {
+        if (dead.isEmpty()) return;
+
+        ArrayList<Block> blocks = new ArrayList<Block>();
+        for (Entry e : dead) {
+            e.changes++;
+            blocks.add(e.data);
+            if (e.extents != null) Collections.addAll(blocks, e.extents);
+        }
+        dataSpace.freeAll(blocks);
+
+        // the header has no holes, the entries past tail are the last ones
+        final int live = slots.size() - dead.size();
+        final int tail = INDEX_START + live * entrySize;
+
+        ArrayList<Block> holes = new ArrayList<Block>();
+        for (Entry e : dead) {
+            if (e.header.start < tail) holes.add(e.header);
+        }
+        HashSet<Entry> gone = new HashSet<Entry>(dead);
+        int i = 0;
+        for (Entry e : slots.subList(live, slots.size())) {
+            if (!gone.contains(e)) {
+                e.header = holes.get(i++);
+                slots.set(slotOf(e.header), e);
+                writeEntry(e);
+            }
+        }
+        slots.subList(live, slots.size()).clear();
+        headerSpace.free(new Block(tail, dead.size() * entrySize));
+    }
+
+    /**
+     * removes a entry from the header
+     * it swaps the space with the last entry
+     * to keep the header without holes
+     *
+     * @param e entry
+     * @throws java.io.IOException when unlucky
+     */
+    private void removeEntry(Entry e) throws IOException {
+
+        Entry max = slots.remove(slots.size() - 1);
+        Block last_p = e.header;
+        if (max != e) {
+            last_p = max.header;
+            max.header = e.header;
+            slots.set(slotOf(max.header), max);
+            writeEntry(max);
+        }
+        headerSpace.free(last_p);
+    }
+
+    /**
+     * @return the position of the index entry in the header
+     */
+    private int slotOf(Block header) {
+        return (header.start - INDEX_START) / entrySize;
+    }
+
+    /**
+     * writes the index entry of e to e.header
+     *
+     * @param e entry
+     * @throws java.io.IOException when unlucky
+     */
+    void writeEntry(Entry e) throws IOException {
+        ByteBuffer b = ByteBuffer.allocate(entrySize);
+        encodeEntry(e, b);
+        b.flip();
+        chan.write(b, e.header.start);
+    }
+
+    /**
+     * checks the format marker at the start of the main header,
+     * leaving the file pointer right after it
+     *
+     * @return whether the file has the marker of this format
+     * @throws java.io.IOException when it's of another version
+     */
+    private boolean readFormat() throws IOException {
+        if (file.length() < INDEX_START) return false;
+
+        file.seek(0);
+        if (file.readInt() != FILE_MAGIC) return false;
+
+        int version = file.readInt();
+        if (version != FORMAT_VERSION) {
+            throw new IOException("Unsupported file format version " + version
+                    + ", this one reads version " + FORMAT_VERSION + ".");
+        }
+        return true;
+    }
+
+    void updateMainHeader() throws IOException {
+        ByteBuffer b = ByteBuffer.allocate(INDEX_START);
+        b.putInt(FILE_MAGIC);
+        b.putInt(FORMAT_VERSION);
+        b.putInt(numEntries());
+        b.putInt(headerSpace.getLimit());
+        b.putLong(seqLimit);
+        b.flip();
+        chan.write(b, 0);
+    }
+
+    /**
+     * the sequence number tells which of two records of
+     * the same key is the newest. they are handed out from
+     * a range reserved in the main header, so they keep
+     * growing across opens without writing it every time
+     *
+     * @return the next sequence number
+     * @throws java.io.IOException when unlucky
+     */
+    long nextSeq() throws IOException {
+        if (seq == seqLimit) {
+            seqLimit += SEQ_RESERVE;
+            updateMainHeader();
+        }
+        return seq++;
+    }
+
+    /**
+     * marks the record at b dead, by clearing its magic
+     */
+    private void kill(Block b) throws IOException {
+        chan.write(ByteBuffer.allocate(INT_SIZE), b.start);
+    }
+
+    /**
+     * makes sure the header has room for one more entry.
+     * instead of pushing records out of the way one entry at a time
+     * the header region at least doubles its size, all records in
+     * the reclaimed range are read in one go and written back
+     * together as one block somewhere else in the data region,
+     * so the cost of growing the header is amortized over the inserts
+     *
+     * @throws java.io.IOException when unlucky
+     */
+    void freeHeaderSpace() throws IOException {
+        freeHeaderSpace(entrySize);
+    }
+
+    /**
+     * @param room how many bytes of index entries have to fit
+     * @throws java.io.IOException when unlucky
+     */
+    private void freeHeaderSpace(int room) throws IOException {
+        if (headerSpace.checkSpace(room)) return;
+
+        final int start = headerSpace.getLimit();
+        int end = start + Math.max(Math.max(start - INDEX_START, 5 * entrySize), room);
+
+        // find every record and blob chunk in the way,
+        // widening the range so nothing gets cut in half
+        ArrayList<Piece> moving = new ArrayList<Piece>();
+        int scanned = start;
+        while (scanned < end) {
+            int from = scanned;
+            scanned = end;
+            for (Entry e : entries()) {
+                end = findPieces(moving, e, -1, e.data, from, scanned, end);
+                if (e.extents == null) continue;
+                for (int i = 0; i < e.extents.length; i++) {
+                    end = findPieces(moving, e, i, e.extents[i], from, scanned, end);
+                }
+            }
+            // slab extents have to go as a whole
+            end = dataSpace.coverSlabs(end);
+        }
+
+        // read the whole range at once
+        ByteBuffer range_data = ByteBuffer.allocate(end - start);
+        if (!moving.isEmpty()) chan.read(range_data, start);
+
+        // give the records back, so the range is a single free block
+        int total = 0;
+        for (Piece p : moving) {
+            dataSpace.free(p.block);
+            total += p.block.length;
+        }
+        Block range = dataSpace.allocateRange(start, end);
+        if (range == null) {
+            throw new IOException("Corrupted: Couldn't get extra space for the header.");
+        }
+
+        if (total > 0) {
+            Collections.sort(moving, piecePointerComparator);
+
+            // pack the records together in a new place
+            Block data = dataSpace.allocateContiguous(total);
+            ByteBuffer packed = ByteBuffer.allocate(total);
+            for (Piece p : moving) {
+                ByteBuffer record = range_data.duplicate();
+                record.limit(p.block.start - start + p.block.length);
+                record.position(p.block.start - start);
+                packed.put(record);
+            }
+            packed.flip();
+            chan.write(packed, data.start);
+
+            int pos = data.start;
+            HashSet<Entry> moved_chunks = new HashSet<Entry>();
+            for (Piece p : moving) {
+                Block b = new Block(pos, p.block.length);
+                pos += b.length;
+                p.entry.changes++;
+                if (p.extent < 0) {
+                    p.entry.data = b;
+                    // recovered entries get their index entry later
+                    if (p.entry.header != null) writeEntry(p.entry);
+                } else {
+                    p.entry.extents[p.extent] = b;
+                    moved_chunks.add(p.entry);
+                }
+            }
+
+            // blobs with moved chunks need a new chunk list
+            for (Entry e : moved_chunks) {
+                writeData(e, readKey(e), extents2bin(e.extents));
+            }
+
+            // wipe the old copies, they must not be found by a recovery
+            Arrays.fill(range_data.array(), (byte) 0);
+            range_data.clear();
+            chan.write(range_data, start);
+        }
+
+        // pass the space to the header
+        headerSpace.free(range);
+    }
+
+    /**
+     * adds the block to the list if it starts in [from, to)
+     * @return the end of the range, widened to cover the block
+     */
+    private static int findPieces(ArrayList<Piece> list, Entry e, int extent, Block b, int from, int to, int end) {
+        if (b.start >= from && b.start < to) {
+            list.add(new Piece(e, extent, b));
+            end = Math.max(end, b.start + b.length);
+        }
+        return end;
+    }
+
+    /**
+     * writes the record of e, header, key and value
+     */
+    void writeData(Entry e, ByteBuffer key, ByteBuffer value) throws IOException {
+        chan.write(recordHeader(e.flags(), nextSeq(), e.expires, key, value), e.data.start);
+        chan.write(key, e.keyStart());
+        chan.write(value, e.valueStart());
+    }
+
+    /**
+     * reads the key of a record, checking that there's a record
+     */
+    ByteBuffer readKey(Entry e) throws IOException {
+        ByteBuffer b = ByteBuffer.allocate(RECORD_HEADER_SIZE + e.keySize);
+        chan.read(b, e.data.start);
+        if (b.getInt(0) != RECORD_MAGIC || (b.getInt(2 * INT_SIZE) & ~RECORD_FLAGS) != e.keySize) {
+            throw new IOException("Corrupted: index entry doesn't point to a record.");
+        }
+        b.position(RECORD_HEADER_SIZE);
+        return b.slice();
+    }
+
+    ByteBuffer readValue(Entry e) throws IOException {
+        ByteBuffer value_data = ByteBuffer.allocate(e.valueLength());
+        chan.read(value_data, e.valueStart());
+        value_data.rewind();
+        return value_data;
+    }
+
+    /**
+     * builds the header of a record
+     *
+     * @param flags BLOB_FLAG for blobs, RAW_FLAG for stream values, CHUNK_FLAG for blob chunks
+     * @param seq the sequence number
+     * @param expires when the entry expires, 0 for never
+     * @param key the key bytes, left untouched
+     * @param value the value bytes, left untouched
+     * @return the header
+     */
+    static ByteBuffer recordHeader(int flags, long seq, long expires, ByteBuffer key, ByteBuffer value) {
+        ByteBuffer head = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+        head.putInt(RECORD_MAGIC);
+        head.putInt(key.remaining() + value.remaining());
+        head.putInt(key.remaining() | flags);
+        head.putLong(seq);
+        head.putLong(expires);
+        head.rewind();
+
+        CRC32C crc = headerChecksum(head);
+        crc.update(key.duplicate());
+        crc.update(value.duplicate());
+        head.putInt(RECORD_HEADER_SIZE - INT_SIZE, (int) crc.getValue());
+        return head;
+    }
+
+    /**
+     * the checksum of a record covers the header fields between
+     * the magic and the checksum itself, and then the payload
+     *
+     * @param head the record header, at the buffer position
+     * @return the checksum of the header fields, to go on with the payload
+     */
+    static CRC32C headerChecksum(ByteBuffer head) {
+        ByteBuffer fields = head.duplicate();
+        fields.limit(head.position() + RECORD_HEADER_SIZE - INT_SIZE);
+        fields.position(head.position() + INT_SIZE);
+        CRC32C crc = new CRC32C();
+        crc.update(fields);
+        return crc;
+    }
+
+    /**
+     * loads the chunk list of a blob entry
+     */
+    void readExtents(Entry e) throws IOException {
+        e.extents = bin2extents(readValue(e));
+    }
+
+    /**
+     * @return the value of the entry, blobs are
+     * decoded straight from the chunks
+     */
+    @SuppressWarnings({"unchecked"})
+    V readObject(Entry e) throws IOException {
+        Serializable o;
+        if (e.extents == null) {
+            o = bin2object(readValue(e));
+        } else {
+            try {
+                o = (Serializable) new ObjectInputStream(new BlobInputStream(e)).readObject();
+            } catch (ClassNotFoundException cnfe) {
+                throw new RuntimeException(cnfe);
+            }
+        }
+        return (V) o;
+    }
+
+    /**
+     * @param e the entry of the key, or null
+     * @return the value bytes of the entry as they are stored, null if
+     * there's no entry or it expired. the stream fails once the entry changes or moves
+     */
+    InputStream streamValue(Entry e) {
+        e = live(e);
+        if (e == null) return null;
+        return new BlobInputStream(e);
+    }
+
+    /**
+     * sends the value bytes of the entry straight from the file to target
+     * @param e the entry of the key, or null
+     * @return the number of bytes transferred, -1 if there's no entry or it expired
+     */
+    long transferValue(Entry e, WritableByteChannel target) throws IOException {
+        e = live(e);
+        if (e == null) return -1;
+
+        long total = 0;
+        for (Block b : valueExtents(e)) {
+            long done = 0;
+            while (done < b.length) {
+                done += chan.transferTo(b.start + done, b.length - done, target);
+            }
+            total += done;
+        }
+        return total;
+    }
+
+    /**
+     * @return the blocks that hold the value of the entry
+     */
+    private static Block[] valueExtents(Entry e) {
+        if (e.extents == null) return new Block[]{new Block(e.valueStart(), e.valueLength())};
+
+        // skip the record header of each chunk
+        Block[] blocks = new Block[e.extents.length];
+        for (int i = 0; i < blocks.length; i++) {
+            Block b = e.extents[i];
+            blocks[i] = new Block(b.start + RECORD_HEADER_SIZE, b.length - RECORD_HEADER_SIZE);
+        }
+        return blocks;
+    }
+
+    /**
+     * @param now the current time, in ms
+     * @param ttl time to live in ms, 0 for never
+     * @return when it expires, 0 for never
+     */
+    static long expiry(long now, long ttl) {
+        return ttl > 0 ? now + ttl : 0;
+    }
+
+    static ByteBuffer object2bin(Serializable o) throws IOException {
+        ByteArrayOutputStream bao = new ByteArrayOutputStream();
+        try {
+            new ObjectOutputStream(bao).writeObject(o);
+        } catch (IOException ex) {
+            throw ex;
+        }
+        return ByteBuffer.wrap(bao.toByteArray());
+    }
+
+    static Serializable bin2object(ByteBuffer blob) throws IOException {
+        if (blob == null) return null;
+
+        try {
+            return (Serializable) new ObjectInputStream(new ByteBufferInputStream(blob)).readObject();
+        } catch (ClassNotFoundException cnfe) {
+            throw new RuntimeException(cnfe);
+        }
+    }
+
+    /**
+     * the chunk list of a blob, (count, count x (start, length))
+     */
+    static ByteBuffer extents2bin(Block[] extents) {
+        ByteBuffer b = ByteBuffer.allocate(INT_SIZE + extents.length * 2 * INT_SIZE);
+        b.putInt(extents.length);
+        for (Block e : extents) {
+            b.putInt(e.start);
+            b.putInt(e.length);
+        }
+        b.flip();
+        return b;
+    }
+
+    static Block[] bin2extents(ByteBuffer b) {
+        Block[] extents = new Block[b.getInt()];
+        for (int i = 0; i < extents.length; i++) {
+            extents[i] = new Block(b.getInt(), b.getInt());
+        }
+        return extents;
+    }
+
+    static class Entry {
+        int keySize;
+
+        Block header;
+        Block data;
+
+        // the chunks with the value, only for blobs
+        Block[] extents;
+
+        // when it expires, in ms, 0 for never
+        long expires;
+
+        // stored from a stream, the value isn't a serialized object
+        boolean raw;
+
+        // counts every time the value is rewritten, moved or freed
+        int changes;
+
+        Entry(Block header, Block data, int ks) {
+            this.header = header;
+            this.data = data;
+            keySize = ks;
+        }
+
+        int keyStart() {
+            return data.start + RECORD_HEADER_SIZE;
+        }
+
+        int valueStart() {
+            return keyStart() + keySize;
+        }
+
+        int valueLength() {
+            return data.length - RECORD_HEADER_SIZE - keySize;
+        }
+
+        boolean expired(long now) {
+            return expires != 0 && expires <= now;
+        }
+
+        /**
+         * @return the flags of the index entry and the record
+         */
+        int flags() {
+            return (extents == null ? 0 : BLOB_FLAG) | (raw ? RAW_FLAG : 0);
+        }
+    }
+
+    /**
+     * a record or blob chunk that has to move
+     */
+    private static class Piece {
+        final Entry entry;
+        final int extent; // which chunk, or -1 for the record
+        final Block block;
+
+        Piece(Entry entry, int extent, Block block) {
+            this.entry = entry;
+            this.extent = extent;
+            this.block = block;
+        }
+    }
+
+    /**
+     * collects a value, keeping it in memory while it's small
+     * and writing it out in chunks once it gets big
+     */
+    class BlobWriter extends OutputStream {
+        final ArrayList<Block> extents = new ArrayList<Block>();
+        ByteBuffer buf = ByteBuffer.allocate(512);
+
+        @Override
+        public void write(int b) throws IOException {
+            makeRoom();
+            buf.put((byte) b);
+        }
+
+        @Override
+        public void write(byte[] bytes, int off, int len) throws IOException {
+            while (len > 0) {
+                makeRoom();
+                int n = Math.min(len, buf.remaining());
+                buf.put(bytes, off, n);
+                off += n;
+                len -= n;
+            }
+        }
+
+        void readFrom(ReadableByteChannel in) throws IOException {
+            do {
+                makeRoom();
+            } while (in.read(buf) >= 0);
+        }
+
+        /**
+         * @return the value if it's small enough to store
+         * in a single record, or null when it's a blob.
+         * empty values are blobs without chunks, so
+         * records never end up empty
+         */
+        ByteBuffer finish() throws IOException {
+            if (extents.isEmpty() && buf.position() > 0 && buf.position() <= BLOB_THRESHOLD) {
+                buf.flip();
+                return buf;
+            }
+            if (buf.position() > 0) writeChunk();
+            return null;
+        }
+
+        /**
+         * frees the chunks written so far, unless a entry took them.
+         * called once the value is stored, or when anything failed
+         */
+        void discard() {
+            for (Block b : extents) dataSpace.free(b);
+            extents.clear();
+        }
+
+        private void makeRoom() throws IOException {
+            if (buf.hasRemaining()) return;
+
+            if (buf.capacity() < BLOB_CHUNK_SIZE) {
+                ByteBuffer b = ByteBuffer.allocate(Math.min(2 * buf.capacity(), BLOB_CHUNK_SIZE));
+                buf.flip();
+                b.put(buf);
+                buf = b;
+            } else {
+                writeChunk();
+            }
+        }
+
+        private void writeChunk() throws IOException {
+            buf.flip();
+            Block b = dataSpace.allocate(RECORD_HEADER_SIZE + buf.remaining());
+            extents.add(b);
+            chan.write(recordHeader(CHUNK_FLAG, nextSeq(), 0, NO_KEY, buf), b.start);
+            while (buf.hasRemaining()) {
+                chan.write(buf, b.start + RECORD_HEADER_SIZE + buf.position());
+            }
+            buf.clear();
+        }
+    }
+
+    /**
+     * reads a value straight from the file, one block after the other.
+     * the blocks may be moved or reused by later writes, so
+     * reading fails once the entry has changed
+     */
+    private class BlobInputStream extends InputStream {
+        private final Entry entry;
+        private final int changes;
+        private final Block[] extents;
+        private int current;
+        private int offset;
+
+        BlobInputStream(Entry e) {
+            entry = e;
+            changes = e.changes;
+            extents = valueExtents(e);
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] bytes, int off, int len) throws IOException {
+            if (entry.changes != changes) {
+                throw new IOException("Stale stream, the value was changed or moved since it was opened.");
+            }
+            if (len == 0) return 0;
+
+            while (current < extents.length && offset == extents[current].length) {
+                current++;
+                offset = 0;
+            }
+            if (current == extents.length) return -1;
+
+            Block b = extents[current];
+            ByteBuffer dst = ByteBuffer.wrap(bytes, off, Math.min(len, b.length - offset));
+            int n = chan.read(dst, b.start + offset);
+            if (n < 0) throw new IOException("Corrupted: blob chunk past the end of the file.");
+            offset += n;
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return current < extents.length ? extents[current].length - offset : 0;
+        }
+    }
+}
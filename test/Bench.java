@@ -0,0 +1,447 @@
+
+
+import org.voile.VoileFile;
+import org.voile.VoileMap;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * YCSB style workload driver for VoileMap.
+ *
+ * loads a number of records, then runs a mix of read, update, insert
+ * and scan operations from a number of threads, closing and re-opening
+ * the map a few times on the way, and reports throughput, latency
+ * percentiles and how the file grew.
+ *
+ * options are given as name=value arguments, for example
+ *
+ *     java Bench workload=b records=1000000 ops=2000000 threads=4
+ *
+ * workload       a (50% read 50% update), b (95/5), c (read only),
+ *                d (95% read 5% insert, latest keys), e (95% scan 5% insert)
+ * read, update, insert, scan    proportions, override the workload
+ * distribution   zipfian, uniform or latest
+ * records        how many records to load first
+ * ops            how many operations to run
+ * threads        how many threads run them (VoileMap is not thread
+ *                safe, so they take turns on it)
+ * reopens        how many times to close and re-open the map
+ * value          value size in bytes, "100" or "50-300"
+ * valuedist      constant, uniform or zipfian, over the value range
+ * scanlength     max keys per scan
+ * load           bulk (VoileLoader) or put, put when slabs are on
+ *                since the loader doesn't lay records out in slabs
+ * slabs          true to serve small records from slabs, only with load=put
+ * file           where to keep the map
+ * seed           random seed
+ *
+ * @author fox
+ */
+public class Bench {
+
+    static final int READ = 0, UPDATE = 1, INSERT = 2, SCAN = 3;
+    static final String[] OP_NAMES = {"read", "update", "insert", "scan"};
+
+    static final HashMap<String, String[]> WORKLOADS = new HashMap<String, String[]>();
+
+    static {
+        //                           read    update  insert  scan    distribution
+        WORKLOADS.put("a", new String[]{"0.5", "0.5", "0", "0", "zipfian"});
+        WORKLOADS.put("b", new String[]{"0.95", "0.05", "0", "0", "zipfian"});
+        WORKLOADS.put("c", new String[]{"1", "0", "0", "0", "zipfian"});
+        WORKLOADS.put("d", new String[]{"0.95", "0", "0.05", "0", "latest"});
+        WORKLOADS.put("e", new String[]{"0", "0", "0.05", "0.95", "zipfian"});
+    }
+
+    public static void main(String[] args) throws Exception {
+
+        HashMap<String, String> opt = new HashMap<String, String>();
+        for (String a : args) {
+            int i = a.indexOf('=');
+            if (i < 0) throw new IllegalArgumentException("expected name=value, got " + a);
+            opt.put(a.substring(0, i), a.substring(i + 1));
+        }
+
+        String[] w = WORKLOADS.get(get(opt, "workload", "a"));
+        if (w == null) throw new IllegalArgumentException("unknown workload " + opt.get("workload"));
+
+        final double[] mix = {
+                Double.parseDouble(get(opt, "read", w[0])),
+                Double.parseDouble(get(opt, "update", w[1])),
+                Double.parseDouble(get(opt, "insert", w[2])),
+                Double.parseDouble(get(opt, "scan", w[3]))
+        };
+        final String distribution = get(opt, "distribution", w[4]);
+        final int records = Integer.parseInt(get(opt, "records", "100000"));
+        final int ops = Integer.parseInt(get(opt, "ops", "200000"));
+        final int threads = Integer.parseInt(get(opt, "threads", "1"));
+        final int reopens = Integer.parseInt(get(opt, "reopens", "0"));
+        final int scanLength = Integer.parseInt(get(opt, "scanlength", "100"));
+        final boolean slabs = Boolean.parseBoolean(get(opt, "slabs", "false"));
+        final String load = get(opt, "load", slabs ? "put" : "bulk");
+        if (slabs && load.equals("bulk")) {
+            throw new IllegalArgumentException("slabs=true needs load=put, the bulk loader doesn't use slabs");
+        }
+        final long seed = Long.parseLong(get(opt, "seed", "" + System.nanoTime()));
+        final File file = new File(get(opt, "file", "bench.vl"));
+
+        String value = get(opt, "value", "100");
+        int dash = value.indexOf('-');
+        final int minValue = Integer.parseInt(dash < 0 ? value : value.substring(0, dash));
+        final int maxValue = Integer.parseInt(dash < 0 ? value : value.substring(dash + 1));
+        final String valueDist = get(opt, "valuedist", dash < 0 ? "constant" : "uniform");
+
+        System.out.println("workload " + opt + " seed=" + seed);
+
+        final ValueSizes sizes = new ValueSizes(valueDist, minValue, maxValue);
+        final AtomicLong inserted = new AtomicLong(records);
+        final Keys keys = new Keys(distribution, records, inserted);
+
+        // load
+        file.delete();
+        long t = System.nanoTime();
+        if (load.equals("bulk")) {
+            VoileFile.<String, byte[]>loader(file).expectedEntries(records)
+                    .load(new LoadIterator(records, sizes, new Random(seed)));
+        } else {
+            VoileMap<String, byte[]> vm = new VoileMap<String, byte[]>(file, slabs);
+            Random rand = new Random(seed);
+            for (int i = 0; i < records; i++) {
+                vm.put(key(i), new byte[sizes.next(rand)]);
+            }
+            vm.close();
+        }
+        double secs = (System.nanoTime() - t) / 1e9;
+        System.out.printf("load      %d records in %.2fs, %.0f records/sec, file %s%n",
+                records, secs, records / secs, bytes(file.length()));
+
+        // run, re-opening the map between the segments
+        final Histogram[] total = newHistograms();
+        int done = 0;
+        for (int segment = 0; segment <= reopens; segment++) {
+            final int segmentOps = (ops - done) / (reopens + 1 - segment);
+            done += segmentOps;
+
+            long fileBefore = file.length();
+            t = System.nanoTime();
+            final VoileMap<String, byte[]> vm = new VoileMap<String, byte[]>(file, slabs);
+            double openSecs = (System.nanoTime() - t) / 1e9;
+
+            final Histogram[][] hists = new Histogram[threads][];
+            Thread[] workers = new Thread[threads];
+            for (int i = 0; i < threads; i++) {
+                final Histogram[] h = hists[i] = newHistograms();
+                final int n = segmentOps / threads + (i < segmentOps % threads ? 1 : 0);
+                final Random rand = new Random(seed + 31 * segment + i + 1);
+                workers[i] = new Thread() {
+                    @Override
+                    public void run() {
+                        for (int j = 0; j < n; j++) {
+                            int op = pick(mix, rand);
+                            long start = System.nanoTime();
+                            switch (op) {
+                                case READ:
+                                    synchronized (vm) {
+                                        vm.get(key(keys.next(rand)));
+                                    }
+                                    break;
+                                case UPDATE:
+                                    byte[] v = new byte[sizes.next(rand)];
+                                    synchronized (vm) {
+                                        vm.put(key(keys.next(rand)), v);
+                                    }
+                                    break;
+                                case INSERT:
+                                    byte[] nv = new byte[sizes.next(rand)];
+                                    synchronized (vm) {
+                                        vm.put(key(inserted.getAndIncrement()), nv);
+                                    }
+                                    break;
+                                case SCAN:
+                                    long first = keys.next(rand);
+                                    int len = 1 + rand.nextInt(scanLength);
+                                    for (int k = 0; k < len; k++) {
+                                        synchronized (vm) {
+                                            vm.get(key(first + k));
+                                        }
+                                    }
+                                    break;
+                            }
+                            h[op].record(System.nanoTime() - start);
+                        }
+                    }
+                };
+            }
+
+            t = System.nanoTime();
+            for (Thread th : workers) th.start();
+            for (Thread th : workers) th.join();
+            secs = (System.nanoTime() - t) / 1e9;
+
+            vm.close();
+
+            Histogram[] seg = newHistograms();
+            for (Histogram[] h : hists) {
+                for (int op = 0; op < h.length; op++) {
+                    seg[op].add(h[op]);
+                    total[op].add(h[op]);
+                }
+            }
+            System.out.printf("segment %d open %.3fs, file %s -> %s%n",
+                    segment, openSecs, bytes(fileBefore), bytes(file.length()));
+            report(seg, secs);
+        }
+        System.out.println("total");
+        report(total, Double.NaN);
+    }
+
+    static void report(Histogram[] hists, double secs) {
+        Histogram all = new Histogram();
+        for (Histogram h : hists) all.add(h);
+        if (!Double.isNaN(secs)) {
+            System.out.printf("  %d ops in %.2fs, %.0f ops/sec%n", all.count, secs, all.count / secs);
+        }
+        System.out.println("            count      p50(us)    p99(us)   p999(us)    max(us)");
+        for (int op = 0; op < hists.length; op++) {
+            if (hists[op].count > 0) line(OP_NAMES[op], hists[op]);
+        }
+        line("all", all);
+    }
+
+    static void line(String name, Histogram h) {
+        System.out.printf("  %-8s %8d %10.1f %10.1f %10.1f %10.1f%n", name, h.count,
+                h.percentile(0.5) / 1e3, h.percentile(0.99) / 1e3,
+                h.percentile(0.999) / 1e3, h.max / 1e3);
+    }
+
+    static Histogram[] newHistograms() {
+        Histogram[] h = new Histogram[OP_NAMES.length];
+        for (int i = 0; i < h.length; i++) h[i] = new Histogram();
+        return h;
+    }
+
+    static int pick(double[] mix, Random rand) {
+        double sum = 0;
+        for (double m : mix) sum += m;
+        double r = rand.nextDouble() * sum;
+        for (int i = 0; i < mix.length; i++) {
+            r -= mix[i];
+            if (r < 0) return i;
+        }
+        return READ;
+    }
+
+    /**
+     * keys are spread over the key space like YCSB does,
+     * so neighbouring ids don't hash to neighbouring keys
+     */
+    static String key(long i) {
+        return "user" + fnv(i);
+    }
+
+    static long fnv(long v) {
+        long h = 0xCBF29CE484222325L;
+        for (int i = 0; i < 8; i++) {
+            h ^= v & 0xff;
+            h *= 0x100000001B3L;
+            v >>= 8;
+        }
+        return Math.abs(h);
+    }
+
+    static String get(Map<String, String> opt, String name, String def) {
+        String v = opt.get(name);
+        return v == null ? def : v;
+    }
+
+    static String bytes(long n) {
+        if (n < 1024 * 1024) return String.format("%.1fKB", n / 1024.0);
+        return String.format("%.1fMB", n / (1024.0 * 1024));
+    }
+
+    /**
+     * picks the key ids for reads, updates and scans
+     */
+    static class Keys {
+        final String distribution;
+        final AtomicLong inserted;
+        final Zipfian zipf;
+
+        Keys(String distribution, long records, AtomicLong inserted) {
+            if (!distribution.equals("uniform") && !distribution.equals("zipfian") && !distribution.equals("latest")) {
+                throw new IllegalArgumentException("unknown distribution " + distribution);
+            }
+            this.distribution = distribution;
+            this.inserted = inserted;
+            zipf = new Zipfian(Math.max(records, 1));
+        }
+
+        long next(Random rand) {
+            long n = Math.max(inserted.get(), 1);
+            if (distribution.equals("uniform")) return (long) (rand.nextDouble() * n);
+
+            long rank = zipf.next(rand, n);
+            if (distribution.equals("latest")) return n - 1 - rank;
+            // scatter the popular ids over the key space
+            return fnv(rank) % n;
+        }
+    }
+
+    /**
+     * zipfian ranks in [0, n), the popular ones first,
+     * after Gray et al. "Quickly generating billion-record
+     * synthetic databases", as in YCSB
+     */
+    static class Zipfian {
+        static final double THETA = 0.99;
+
+        final double alpha = 1 / (1 - THETA);
+        final double zeta2 = zeta(0, 2, 0);
+        long items;
+        double zetan;
+        double eta;
+
+        Zipfian(long items) {
+            this.items = items;
+            zetan = zeta(0, items, 0);
+            eta = eta();
+        }
+
+        synchronized long next(Random rand, long n) {
+            if (n > items) { // grow the zeta incrementally with the inserts
+                zetan = zeta(items, n, zetan);
+                items = n;
+                eta = eta();
+            }
+            double u = rand.nextDouble();
+            double uz = u * zetan;
+            if (uz < 1) return 0;
+            if (uz < 1 + Math.pow(0.5, THETA)) return 1;
+            return Math.min(items - 1, (long) (items * Math.pow(eta * u - eta + 1, alpha)));
+        }
+
+        double eta() {
+            return (1 - Math.pow(2.0 / items, 1 - THETA)) / (1 - zeta2 / zetan);
+        }
+
+        static double zeta(long from, long to, double sum) {
+            for (long i = from; i < to; i++) {
+                sum += 1 / Math.pow(i + 1, THETA);
+            }
+            return sum;
+        }
+    }
+
+    static class ValueSizes {
+        final String distribution;
+        final int min, max;
+        final Zipfian zipf;
+
+        ValueSizes(String distribution, int min, int max) {
+            if (!distribution.equals("constant") && !distribution.equals("uniform") && !distribution.equals("zipfian")) {
+                throw new IllegalArgumentException("unknown value distribution " + distribution);
+            }
+            this.distribution = distribution;
+            this.min = min;
+            this.max = Math.max(min, max);
+            zipf = new Zipfian(this.max - min + 1);
+        }
+
+        int next(Random rand) {
+            if (distribution.equals("constant")) return max;
+            if (distribution.equals("uniform")) return min + rand.nextInt(max - min + 1);
+            return min + (int) zipf.next(rand, max - min + 1);
+        }
+    }
+
+    /**
+     * feeds the initial records to the bulk loader
+     */
+    static class LoadIterator implements Iterator<Map.Entry<String, byte[]>> {
+        final int records;
+        final ValueSizes sizes;
+        final Random rand;
+        int i;
+
+        LoadIterator(int records, ValueSizes sizes, Random rand) {
+            this.records = records;
+            this.sizes = sizes;
+            this.rand = rand;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return i < records;
+        }
+
+        @Override
+        public Map.Entry<String, byte[]> next() {
+            if (!hasNext()) throw new NoSuchElementException();
+            return new HashMap.SimpleEntry<String, byte[]>(key(i++), new byte[sizes.next(rand)]);
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    /**
+     * log-linear latency histogram in nanoseconds,
+     * 32 buckets per power of two, about 3% precision
+     */
+    static class Histogram {
+        static final int SUB_BITS = 5;
+
+        final long[] buckets = new long[64 << SUB_BITS];
+        long count;
+        long max;
+
+        void record(long nanos) {
+            if (nanos < 0) nanos = 0;
+            buckets[bucket(nanos)]++;
+            count++;
+            if (nanos > max) max = nanos;
+        }
+
+        void add(Histogram h) {
+            for (int i = 0; i < buckets.length; i++) buckets[i] += h.buckets[i];
+            count += h.count;
+            max = Math.max(max, h.max);
+        }
+
+        double percentile(double p) {
+            if (count == 0) return 0;
+            long target = (long) Math.ceil(p * count);
+            long seen = 0;
+            for (int i = 0; i < buckets.length; i++) {
+                seen += buckets[i];
+                if (seen >= target) return Math.min(value(i), max);
+            }
+            return max;
+        }
+
+        static int bucket(long v) {
+            if (v < (1 << SUB_BITS)) return (int) v;
+            int exp = 63 - Long.numberOfLeadingZeros(v) - SUB_BITS;
+            return ((exp + 1) << SUB_BITS) + (int) ((v >>> exp) & ((1 << SUB_BITS) - 1));
+        }
+
+        /**
+         * @return the highest value that falls in the bucket
+         */
+        static long value(int bucket) {
+            if (bucket < (1 << SUB_BITS)) return bucket;
+            int exp = (bucket >> SUB_BITS) - 1;
+            long sub = (bucket & ((1 << SUB_BITS) - 1)) | (1 << SUB_BITS);
+            return ((sub + 1) << exp) - 1;
+        }
+    }
+}
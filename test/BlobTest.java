@@ -0,0 +1,125 @@
+
+
+import org.voile.VoileMap;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.util.Arrays;
+import java.util.Random;
+
+
+/**
+ *
+ * @author fox
+ */
+public class BlobTest {
+
+    static final int SIZE = 8 * 1024 * 1024;
+
+    public static void main(String[] args) throws Exception {
+
+        File a = new File("blob.txt");
+        a.delete();
+
+        Random rand = new Random();
+        byte[] big = new byte[SIZE];
+        rand.nextBytes(big);
+        byte[] small = new byte[100];
+        rand.nextBytes(small);
+
+        VoileMap<String, byte[]> vm = new VoileMap<String, byte[]>(a);
+        vm.putStream("stream", new ByteArrayInputStream(big));
+        vm.putStream("small", new ByteArrayInputStream(small));
+        vm.put("object", big);
+        vm.put("other", small);
+
+        for (int i = 0; i < 2; i++) {
+            Main.check(Arrays.equals(big, readAll(vm.getStream("stream"))), "stream");
+            Main.check(Arrays.equals(small, readAll(vm.getStream("small"))), "small stream");
+            Main.check(Arrays.equals(big, vm.get("object")), "object");
+            Main.check(Arrays.equals(small, vm.get("other")), "small object");
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            long n = vm.transferTo("stream", Channels.newChannel(out));
+            Main.check(n == SIZE && Arrays.equals(big, out.toByteArray()), "transfer");
+
+            // and again after re-opening
+            vm.close();
+            vm = new VoileMap<String, byte[]>(a);
+        }
+
+        // blobs give their space back
+        long length = a.length();
+        for (int i = 0; i < 10; i++) {
+            vm.delete("stream");
+            vm.putStream("stream", new ByteArrayInputStream(big));
+            vm.put("object", small);
+            vm.put("object", big);
+        }
+        Main.check(a.length() <= length + 2 * SIZE, "space leak " + length + " -> " + a.length());
+        Main.check(Arrays.equals(big, readAll(vm.getStream("stream"))), "stream after updates");
+        Main.check(Arrays.equals(big, vm.get("object")), "object after updates");
+
+        // stream values aren't decoded by put and remove, also
+        // after a re-open and a recovery, and nothing leaks
+        // beyond the new value and the copies it replaces
+        length = a.length();
+        for (int i = 0; i < 10; i++) {
+            vm.putStream("raw", new ByteArrayInputStream(big));
+            vm.putStream("raw small", new ByteArrayInputStream(small));
+            if (i % 3 == 1) {
+                vm.close();
+                vm = new VoileMap<String, byte[]>(a);
+            } else if (i % 3 == 2) {
+                vm.close();
+                vm = VoileMap.recover(a, false);
+            }
+            Main.check(vm.put("raw", small) == null, "put over a stream value");
+            Main.check(Arrays.equals(small, vm.put("raw", big)), "put over the put");
+            Main.check(vm.remove("raw small") == null, "remove of a stream value");
+        }
+        Main.check(a.length() <= length + 3 * SIZE, "stream value leak " + length + " -> " + a.length());
+        Main.check(Arrays.equals(big, vm.get("raw")), "put after stream value");
+        vm.close();
+
+        // a open stream fails once its value moved, here
+        // when the header grows over the first chunks
+        a.delete();
+        vm = new VoileMap<String, byte[]>(a);
+        vm.putStream("first", new ByteArrayInputStream(big));
+        InputStream in = vm.getStream("first");
+        Main.check(in.read(new byte[100]) == 100, "read before the move");
+        for (int i = 0; i < 1000; i++) vm.put("k" + i, small);
+        Main.check(stale(in), "read after the move");
+        Main.check(Arrays.equals(big, readAll(vm.getStream("first"))), "read again after the move");
+
+        in = vm.getStream("first");
+        vm.put("first", small);
+        Main.check(stale(in), "read after a put");
+        vm.close();
+
+        System.err.println("OK");
+    }
+
+    static byte[] readAll(InputStream in) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[10000];
+        for (int n; (n = in.read(buf)) >= 0; ) out.write(buf, 0, n);
+        return out.toByteArray();
+    }
+
+    /**
+     * @return whether reading fails
+     */
+    static boolean stale(InputStream in) {
+        try {
+            readAll(in);
+            return false;
+        } catch (Exception ex) {
+            return true;
+        }
+    }
+}
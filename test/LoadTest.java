@@ -0,0 +1,80 @@
+
+
+import org.voile.VoileFile;
+import org.voile.VoileMap;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+
+/**
+ *
+ * @author fox
+ */
+public class LoadTest {
+
+    static final int COUNT = 200000;
+
+    public static void main(String[] args) throws Exception {
+
+        File a = new File("load.txt");
+
+        Random rand = new Random();
+        ArrayList<Map.Entry<String, String>> entries = new ArrayList<Map.Entry<String, String>>();
+        HashMap<String, String> hm = new HashMap<String, String>();
+        for (int i = 0; i < COUNT; i++) {
+            // repeated keys, the last one should win
+            String key = "k" + rand.nextInt(COUNT / 2);
+            String value = Main.repeat("V", rand.nextInt(50)) + i;
+            entries.add(new HashMap.SimpleEntry<String, String>(key, value));
+            hm.put(key, value);
+        }
+
+        long t = System.currentTimeMillis();
+        // reserve too little header space on purpose
+        int n = VoileFile.<String, String>loader(a).expectedEntries(COUNT / 10).load(entries.iterator());
+        System.err.println("loaded " + n + " in " + (System.currentTimeMillis() - t) + "ms");
+
+        VoileMap<String, String> vm = new VoileMap<String, String>(a);
+        Main.checkThem(hm, vm);
+
+        // the loaded file should keep working as usual
+        for (int i = 0; i < COUNT / 100; i++) {
+            String key = "n" + i;
+            vm.put(key, "x" + i);
+            hm.put(key, "x" + i);
+            vm.remove("k" + i);
+            hm.remove("k" + i);
+        }
+        vm.close();
+        vm = new VoileMap<String, String>(a);
+        Main.checkThem(hm, vm);
+        vm.close();
+
+        // big values are loaded as blobs, with chunks
+        // in the way of the index growing too
+        entries.clear();
+        hm.clear();
+        char[] big = new char[400000];
+        for (int i = 0; i < 300; i++) {
+            String key = "b" + rand.nextInt(100);
+            Arrays.fill(big, (char) ('a' + rand.nextInt(26)));
+            String value = new String(big, 0, rand.nextInt(3) == 0 ? 100000 + rand.nextInt(300000) : 10) + i;
+            entries.add(new HashMap.SimpleEntry<String, String>(key, value));
+            hm.put(key, value);
+        }
+        VoileFile.<String, String>loader(a).expectedEntries(5).load(entries.iterator());
+        vm = new VoileMap<String, String>(a);
+        Main.checkThem(hm, vm);
+        vm.close();
+        vm = VoileMap.recover(a, false);
+        Main.checkThem(hm, vm);
+        vm.close();
+
+        System.err.println("OK");
+    }
+}
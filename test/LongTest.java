@@ -0,0 +1,70 @@
+
+
+import org.voile.LongVoileMap;
+import org.voile.VoileMap;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.util.HashMap;
+import java.util.Random;
+
+
+/**
+ *
+ * @author fox
+ */
+public class LongTest {
+
+    static final int COUNT = 50000;
+
+    public static void main(String[] args) throws Exception {
+
+        File a = new File("long.txt");
+        a.delete();
+
+        LongVoileMap<String> vm = new LongVoileMap<String>(a);
+        HashMap<Long, String> hm = new HashMap<Long, String>();
+
+        Random rand = new Random();
+        for (int i = 0; i < COUNT; i++) {
+
+            long key = rand.nextInt(2000) * 0x100000001L; // spread over the whole range
+            if (rand.nextInt(3) > 0) { // insert
+                String value = Main.repeat("V", rand.nextInt(50));
+                vm.put(key, value);
+                hm.put(key, value);
+            } else { // remove
+                String s1 = vm.remove(key);
+                String s2 = hm.remove(key);
+                Main.check(s1 == null ? s2 == null : s1.equals(s2), "remove " + key);
+            }
+            if (rand.nextInt(2000) == 1) { // close & re-open
+                vm.close();
+                vm = new LongVoileMap<String>(a);
+                System.err.println("RESTART");
+            }
+        }
+        vm.putStream(-1, new ByteArrayInputStream(new byte[0]));
+        Main.check(vm.getStream(-1).read() == -1, "empty stream");
+        vm.delete(-1);
+
+        vm.close();
+        vm = new LongVoileMap<String>(a);
+        Main.check(vm.size() == hm.size(), "size");
+        for (Long key : hm.keySet()) {
+            Main.check(hm.get(key).equals(vm.get(key)), "get " + key);
+        }
+        for (long key : vm.keys()) {
+            Main.check(hm.containsKey(key), "keys " + key);
+        }
+        vm.close();
+
+        // same content with boxed keys, to compare
+        File b = new File("boxed.txt");
+        b.delete();
+        VoileMap<Long, String> boxed = new VoileMap<Long, String>(b);
+        boxed.putAll(hm);
+        boxed.close();
+        System.err.println("OK file " + a.length() + " bytes, boxed " + b.length() + " bytes");
+    }
+}
@@ -66,6 +66,13 @@ public class Main {
        }
     }
 
+    static void check(boolean ok, String what) {
+        if (!ok) {
+            new Exception("shit: " + what).printStackTrace();
+            System.exit(1);
+        }
+    }
+
     static String repeat(String x, int n) {
         String r = "";
         for(int i=0;i<n;i++) {
@@ -17,13 +17,15 @@ public class MemTest {
         HashSet<Block> a = new HashSet<Block>();
 
 
-        MemoryPool st = new MemoryPool(50,100,true);
+        // "slabs" to test the slab mode, mostly small blocks then
+        boolean slabs = args.length > 0 && args[0].equals("slabs");
+        MemoryPool st = new MemoryPool(50,100,true,slabs);
 
         Random rand = new Random();
 
         for(int i=0;i<10000;i++) {
             if(rand.nextBoolean()) {
-                int s = 1 + rand.nextInt(600);
+                int s = 1 + rand.nextInt(slabs && rand.nextInt(10) > 0 ? 300 : 600);
                 Block p = st.allocate(s);
                 System.out.println("got block on "+p+" size "+s);
                 boolean old = a.add(p);
@@ -0,0 +1,215 @@
+
+
+import org.voile.LongVoileMap;
+import org.voile.VoileFile;
+import org.voile.VoileMap;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+
+/**
+ * wrecks the index of files and rebuilds it from the records
+ *
+ * @author fox
+ */
+public class RecoverTest {
+
+    static final int COUNT = 50000;
+
+    public static void main(String[] args) throws Exception {
+
+        boolean slabs = args.length > 0 && args[0].equals("slabs");
+
+        File a = new File("recover.txt");
+        a.delete();
+
+        Random rand = new Random();
+        VoileMap<String, String> vm = new VoileMap<String, String>(a, slabs);
+        HashMap<String, String> hm = new HashMap<String, String>();
+        for (int i = 0; i < COUNT; i++) {
+            String key = "k" + rand.nextInt(COUNT / 5);
+            if (rand.nextInt(3) > 0) { // insert
+                // now and then a value big enough to be a blob
+                int n = rand.nextInt(500) == 0 ? 100000 + rand.nextInt(300000) : rand.nextInt(50);
+                String value = Main.repeat("V", n) + i;
+                vm.put(key, value);
+                hm.put(key, value);
+            } else { // remove
+                vm.remove(key);
+                hm.remove(key);
+            }
+        }
+        vm.close();
+
+        wreck(a, rand);
+        long t = System.currentTimeMillis();
+        vm = VoileMap.recover(a, slabs);
+        System.err.println("recovered " + vm.size() + " from " + a.length() + " bytes in "
+                + (System.currentTimeMillis() - t) + "ms");
+        check(vm, hm);
+
+        // keeps working, and removed keys don't come back
+        for (int i = 0; i < COUNT / 10; i++) {
+            String key = "k" + rand.nextInt(COUNT / 5);
+            if (rand.nextBoolean()) {
+                vm.put(key, "x" + i);
+                hm.put(key, "x" + i);
+            } else {
+                vm.remove(key);
+                hm.remove(key);
+            }
+        }
+        vm.close();
+        vm = VoileMap.recover(a, slabs);
+        check(vm, hm);
+        vm.close();
+        vm = new VoileMap<String, String>(a, slabs);
+        check(vm, hm);
+        vm.close();
+
+        // the last value of a repeated key wins
+        ArrayList<Map.Entry<String, String>> entries = new ArrayList<Map.Entry<String, String>>();
+        hm.clear();
+        for (int i = 0; i < COUNT; i++) {
+            String key = "k" + rand.nextInt(COUNT / 2);
+            entries.add(new HashMap.SimpleEntry<String, String>(key, "l" + i));
+            hm.put(key, "l" + i);
+        }
+        VoileFile.<String, String>loader(a).expectedEntries(COUNT / 10).load(entries.iterator());
+        wreck(a, rand);
+        vm = VoileMap.recover(a, slabs);
+        check(vm, hm);
+        vm.close();
+
+        // long keys
+        a.delete();
+        LongVoileMap<String> lm = new LongVoileMap<String>(a, slabs);
+        HashMap<Long, String> lhm = new HashMap<Long, String>();
+        for (int i = 0; i < COUNT; i++) {
+            long key = rand.nextInt(COUNT / 5) * 0x100000001L;
+            if (rand.nextInt(3) > 0) {
+                lm.put(key, "v" + i);
+                lhm.put(key, "v" + i);
+            } else {
+                lm.remove(key);
+                lhm.remove(key);
+            }
+        }
+        lm.close();
+        wreck(a, rand);
+        lm = LongVoileMap.recover(a, slabs);
+        Main.check(lm.size() == lhm.size(), "long size");
+        for (Long key : lhm.keySet()) {
+            Main.check(lhm.get(key).equals(lm.get(key)), "long get " + key);
+        }
+        lm.close();
+
+        // a file of the old format, without record headers, can't be
+        // opened nor recovered and is left untouched, but upgraded
+        hm.clear();
+        for (int i = 0; i < COUNT / 10; i++) {
+            hm.put("old" + i, Main.repeat("O", rand.nextInt(50)) + i);
+        }
+        writeOld(a, hm);
+        byte[] before = Files.readAllBytes(a.toPath());
+        try {
+            new VoileMap<String, String>(a).close();
+            Main.check(false, "opened a old file");
+        } catch (RuntimeException ex) {
+            System.err.println("open: " + ex.getMessage());
+        }
+        try {
+            VoileMap.recover(a, slabs).close();
+            Main.check(false, "recovered a old file");
+        } catch (RuntimeException ex) {
+            System.err.println("recover: " + ex.getMessage());
+        }
+        Main.check(Arrays.equals(before, Files.readAllBytes(a.toPath())), "old file changed");
+
+        Main.check(VoileFile.upgrade(a), "upgrade");
+        Main.check(!VoileFile.upgrade(a), "upgrade of a upgraded file");
+        vm = new VoileMap<String, String>(a, slabs);
+        check(vm, hm);
+        vm.put("new", "value");
+        hm.put("new", "value");
+        vm.close();
+        vm = VoileMap.recover(a, slabs);
+        check(vm, hm);
+        vm.close();
+
+        // garbage is neither format
+        rand.nextBytes(before);
+        Files.write(a.toPath(), before);
+        try {
+            VoileFile.upgrade(a);
+            Main.check(false, "upgraded garbage");
+        } catch (IOException ex) {
+            System.err.println("upgrade: " + ex.getMessage());
+        }
+        Main.check(Arrays.equals(before, Files.readAllBytes(a.toPath())), "garbage changed");
+
+        System.err.println("OK");
+    }
+
+    /**
+     * writes a file the way versions without record headers did,
+     * (numEntries, dataStartPointer) and (dataPointer, dataLength, keySize)
+     * index entries, with a hole between the records
+     */
+    static void writeOld(File f, Map<String, String> m) throws Exception {
+        f.delete();
+        RandomAccessFile raf = new RandomAccessFile(f, "rw");
+        int dataStart = 8 + 12 * m.size() + 100;
+        raf.writeInt(m.size());
+        raf.writeInt(dataStart);
+        int pos = dataStart;
+        for (Map.Entry<String, String> e : m.entrySet()) {
+            byte[] key = serialize(e.getKey());
+            byte[] value = serialize(e.getValue());
+            raf.writeInt(pos);
+            raf.writeInt(key.length + value.length);
+            raf.writeInt(key.length);
+            long index = raf.getFilePointer();
+            raf.seek(pos);
+            raf.write(key);
+            raf.write(value);
+            pos += key.length + value.length + 7;
+            raf.seek(index);
+        }
+        raf.close();
+    }
+
+    static byte[] serialize(Object o) throws Exception {
+        ByteArrayOutputStream bao = new ByteArrayOutputStream();
+        new ObjectOutputStream(bao).writeObject(o);
+        return bao.toByteArray();
+    }
+
+    /**
+     * fills the main header and the header region with garbage
+     */
+    static void wreck(File f, Random rand) throws Exception {
+        RandomAccessFile raf = new RandomAccessFile(f, "rw");
+        raf.seek(12); // dataStartPointer
+        byte[] garbage = new byte[raf.readInt()];
+        rand.nextBytes(garbage);
+        raf.seek(0);
+        raf.write(garbage);
+        raf.close();
+    }
+
+    static void check(VoileMap<String, String> vm, HashMap<String, String> hm) {
+        Main.check(vm.size() == hm.size(), "size " + vm.size() + " != " + hm.size());
+        Main.checkThem(hm, vm);
+    }
+}
@@ -0,0 +1,148 @@
+
+
+import org.voile.LongVoileMap;
+import org.voile.VoileMap;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Random;
+
+
+/**
+ * entries that expire, mixed with entries that don't
+ *
+ * @author fox
+ */
+public class TtlTest {
+
+    static final int COUNT = 20000;
+    static final long HOUR = 3600 * 1000;
+
+    public static void main(String[] args) throws Exception {
+
+        boolean slabs = args.length > 0 && args[0].equals("slabs");
+
+        File a = new File("ttl.txt");
+        a.delete();
+
+        Random rand = new Random();
+        VoileMap<String, String> vm = new VoileMap<String, String>(a, slabs);
+        // what should be visible once the short lived entries are gone
+        HashMap<String, String> hm = new HashMap<String, String>();
+
+        long size = 0;
+        for (int round = 0; round < 4; round++) {
+            for (int i = 0; i < COUNT; i++) {
+                String key = "k" + rand.nextInt(COUNT / 2);
+                String value = Main.repeat("V", rand.nextInt(50)) + i;
+                switch (rand.nextInt(5)) {
+                    case 0: // gone in a moment
+                        vm.put(key, value, 1);
+                        hm.remove(key);
+                        break;
+                    case 1:
+                        vm.put(key, value, HOUR);
+                        hm.put(key, value);
+                        break;
+                    case 2:
+                        vm.put(key, value);
+                        hm.put(key, value);
+                        break;
+                    case 3:
+                        vm.remove(key);
+                        hm.remove(key);
+                        break;
+                    default:
+                        if (rand.nextInt(200) == 0) { // now and then a blob
+                            value = Main.repeat("B", 100000);
+                            vm.put(key, value, 1);
+                            hm.remove(key);
+                        }
+                }
+            }
+            Thread.sleep(1100); // a tick of the wheel
+
+            check(vm, hm);
+            int n = vm.expire();
+            Main.check(vm.size() == hm.size(), "size after expire " + vm.size() + " != " + hm.size());
+            Main.checkThem(hm, vm);
+            System.err.println("round " + round + " reclaimed " + n + ", file " + a.length() + " bytes");
+
+            // the space of expired entries gets reused
+            if (round == 1) size = a.length();
+            if (round > 1) Main.check(a.length() < 2 * size, "file keeps growing");
+
+            vm.close();
+            vm = new VoileMap<String, String>(a, slabs);
+            check(vm, hm);
+        }
+
+        // expiring after a reopen, and a put over an expired key
+        vm.put("short", "x", 1);
+        vm.put("gone", "x", 1);
+        vm.close();
+        Thread.sleep(1100);
+        vm = new VoileMap<String, String>(a, slabs);
+        Main.check(vm.get("short") == null && !vm.containsKey("short"), "expired after reopen");
+        Main.check(vm.put("short", "y") == null, "put over expired");
+        Main.check(!vm.delete("gone"), "delete expired");
+        hm.put("short", "y");
+        check(vm, hm);
+
+        // a explicit expire gets what expired in the current tick too
+        vm.expire();
+        vm.put("now", "x", 1);
+        Thread.sleep(50);
+        Main.check(vm.expire() == 1, "expire in the current tick");
+        Main.check(!vm.keySet().contains("now") && vm.size() == hm.size(), "size after expire in the current tick");
+        vm.close();
+
+        // a recovery doesn't bring expired entries back
+        vm = VoileMap.recover(a, slabs);
+        check(vm, hm);
+        Main.check(vm.size() == hm.size(), "size after recover");
+        vm.close();
+
+        // long keys
+        a.delete();
+        LongVoileMap<String> lm = new LongVoileMap<String>(a, slabs);
+        HashMap<Long, String> lhm = new HashMap<Long, String>();
+        for (int i = 0; i < COUNT; i++) {
+            long key = rand.nextInt(COUNT / 2) * 0x100000001L;
+            if (rand.nextBoolean()) {
+                lm.put(key, "v" + i, 1);
+                lhm.remove(key);
+            } else {
+                lm.put(key, "v" + i, HOUR);
+                lhm.put(key, "v" + i);
+            }
+        }
+        Thread.sleep(1100);
+        lm.expire();
+        Main.check(lm.size() == lhm.size(), "long size");
+        for (Long key : lhm.keySet()) {
+            Main.check(lhm.get(key).equals(lm.get(key)), "long get " + key);
+        }
+        lm.close();
+        lm = new LongVoileMap<String>(a, slabs);
+        Main.check(lm.size() == lhm.size(), "long size after reopen");
+        for (long key : lm.keys()) {
+            Main.check(lhm.get(key).equals(lm.get(key)), "long keys " + key);
+        }
+        lm.close();
+
+        System.err.println("OK");
+    }
+
+    /**
+     * expired entries may still be in the index, but not visible
+     */
+    static void check(VoileMap<String, String> vm, HashMap<String, String> hm) {
+        for (String key : hm.keySet()) {
+            Main.check(hm.get(key).equals(vm.get(key)), "get " + key);
+        }
+        for (String key : vm.keySet()) {
+            Main.check(hm.containsKey(key) || vm.get(key) == null, "expired " + key + " still there");
+        }
+    }
+}